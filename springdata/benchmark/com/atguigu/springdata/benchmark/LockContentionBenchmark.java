@@ -0,0 +1,134 @@
+package com.atguigu.springdata.benchmark;
+
+import com.atguigu.springdata.Person;
+import com.atguigu.springdata.PersonService;
+import com.atguigu.springdata.retry.OptimisticLockRetryAspect;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个线程同时修改少量相同的记录, 对比乐观锁(冲突后重试)和悲观锁(SELECT ... FOR UPDATE)的吞吐量
+ * hotRows 越小冲突越多; 运行结束时打印乐观锁的冲突和重试次数
+ *
+ * 乐观锁重试次数用完仍然冲突时修改失败, 但 JMH 的主分数仍然把这次调用算作一次操作,
+ * 所以比较两种方式时看 succeeded 这个辅助计数器(每秒成功修改的次数), failed 为每秒失败的次数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class LockContentionBenchmark {
+
+    // 被同时修改的记录数
+    @Param({"4", "64"})
+    private int hotRows;
+
+    private ClassPathXmlApplicationContext ctx;
+    private PersonService personService;
+    private OptimisticLockRetryAspect retryAspect;
+    private List<Integer> ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ctx = new ClassPathXmlApplicationContext();
+        ctx.getEnvironment().setActiveProfiles("embedded");
+        ctx.setConfigLocation("applicationContext.xml");
+        ctx.refresh();
+        personService = ctx.getBean(PersonService.class);
+        retryAspect = ctx.getBean(OptimisticLockRetryAspect.class);
+
+        List<Person> persons = new ArrayList<>(hotRows);
+        for (int i = 0; i < hotRows; i++) {
+            Person person = new Person();
+            person.setBirth(new Date());
+            person.setEmail("hot" + i + "@atguigu.com");
+            person.setLastName("hot" + i);
+            persons.add(person);
+        }
+        personService.savePersonsBatched(persons);
+        ids = new ArrayList<>(hotRows);
+        for (Person person : persons) {
+            ids.add(person.getId());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(retryAspect);
+        ctx.close();
+    }
+
+    // 每个线程各自计数, JMH 汇总后按每秒的次数输出
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Outcomes {
+        public long succeeded;
+        public long failed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            succeeded = 0;
+            failed = 0;
+        }
+    }
+
+    // 重试次数用完仍然冲突时算作失败, 不计入 succeeded
+    @Benchmark
+    public boolean optimistic(Outcomes outcomes) {
+        try {
+            personService.changePersonEmail(randomId(), "o" + System.nanoTime() + "@atguigu.com");
+            outcomes.succeeded++;
+            return true;
+        } catch (OptimisticLockingFailureException e) {
+            outcomes.failed++;
+            return false;
+        }
+    }
+
+    // 悲观锁排队等待, 不会失败; 同样计数, 和乐观锁的 succeeded 对比
+    @Benchmark
+    public Person pessimistic(Outcomes outcomes) {
+        Person person = personService.changePersonEmailPessimistic(randomId(), "p" + System.nanoTime() + "@atguigu.com");
+        outcomes.succeeded++;
+        return person;
+    }
+
+    private Integer randomId() {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LockContentionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,182 @@
+package com.atguigu.springdata.benchmark;
+
+import com.atguigu.springdata.Person;
+import com.atguigu.springdata.PersonRepository;
+import com.atguigu.springdata.PersonContact;
+import com.atguigu.springdata.PersonService;
+import com.atguigu.springdata.PersonSummary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.domain.Specification;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository 常用方法的基准测试, 使用 embedded profile 的内存 H2 数据库(MySQL 兼容模式)
+ * 运行 main 方法即可, 结果中的 gc.alloc.rate 是内存分配速率
+ * 修改配置(缓存、连接池、批量大小等)前后各运行一次, 对比 ops/s
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepositoryBenchmark {
+
+    // 预先插入的 Person 数量
+    private static final int PERSON_COUNT = 10000;
+
+    // 投影查询的对比中每次查询的 Person 数量
+    private static final int PROJECTION_ROWS = 500;
+
+    // saveIterable 每次保存的 Person 数量
+    private static final int SAVE_BATCH = 100;
+
+    private ClassPathXmlApplicationContext ctx;
+    private PersonRepository personRepository;
+    private PersonService personService;
+    private Specification<Person> specification;
+    private Specification<Person> projectionSpecification;
+    private int minId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ctx = new ClassPathXmlApplicationContext();
+        ctx.getEnvironment().setActiveProfiles("embedded");
+        ctx.setConfigLocation("applicationContext.xml");
+        ctx.refresh();
+        personRepository = ctx.getBean(PersonRepository.class);
+        personService = ctx.getBean(PersonService.class);
+
+        personService.savePersonsBatched(createPersons("ln", PERSON_COUNT));
+        minId = personRepository.getByLastName("ln0").getId();
+
+        specification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
+                Path<Integer> path = root.get("id");
+                return criteriaBuilder.gt(path, minId + 5);
+            }
+        };
+        projectionSpecification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
+                Path<Integer> path = root.get("id");
+                return criteriaBuilder.lt(path, minId + PROJECTION_ROWS);
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ctx.close();
+    }
+
+    @Benchmark
+    public Person getByLastName() {
+        return personRepository.getByLastName("ln" + randomIndex());
+    }
+
+    @Benchmark
+    public List<Person> getByLastNameStartingWithAndIdLessThan() {
+        return personRepository.getByLastNameStartingWithAndIdLessThan("ln1", minId + randomIndex());
+    }
+
+    // 以下几个方法查询相同的 PROJECTION_ROWS 条记录, 对比完整实体、只读实体和投影的耗时和内存分配(gc.alloc.rate.norm)
+    @Benchmark
+    public List<Person> projectionBaselineEntities() {
+        return personRepository.getByLastNameStartingWithAndIdLessThan("ln", minId + PROJECTION_ROWS);
+    }
+
+    @Benchmark
+    public List<Person> projectionReadOnlyEntities() {
+        return personRepository.readByLastNameStartingWithAndIdLessThan("ln", minId + PROJECTION_ROWS);
+    }
+
+    @Benchmark
+    public List<PersonSummary> projectionConstructorExpression() {
+        return personRepository.getSummaryByLastNameStartingWithAndIdLessThan("ln", minId + PROJECTION_ROWS);
+    }
+
+    @Benchmark
+    public List<PersonContact> projectionInterface() {
+        return personRepository.findAll(projectionSpecification, PersonContact.class);
+    }
+
+    @Benchmark
+    public Page<Person> findAllSpecificationPage() {
+        return personRepository.findAll(specification, new PageRequest(randomIndex() / 20, 20));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAVE_BATCH)
+    public List<Person> saveIterable() {
+        return personRepository.save(createPersons("save", SAVE_BATCH));
+    }
+
+    // 实体已经不在持久化上下文中, saveAndFlush 会先 select 再 update
+    @Benchmark
+    public Person saveAndFlushMerge() {
+        Person person = personRepository.findOne(minId + randomIndex());
+        person.setEmail("merge" + System.nanoTime() + "@atguigu.com");
+        return personRepository.saveAndFlush(person);
+    }
+
+    @Benchmark
+    public long getTotalCount() {
+        return personRepository.getTotalCount();
+    }
+
+    private static int randomIndex() {
+        return ThreadLocalRandom.current().nextInt(PERSON_COUNT);
+    }
+
+    private static List<Person> createPersons(String prefix, int count) {
+        List<Person> persons = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Person person = new Person();
+            person.setBirth(new Date());
+            person.setEmail(prefix + i + "@atguigu.com");
+            person.setLastName(prefix + i);
+            persons.add(person);
+        }
+        return persons;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RepositoryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.atguigu.springdata.benchmark;
+
+import com.atguigu.springdata.PersonRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 冷启动的耗时: 每次测量都在新的 JVM 中创建 ApplicationContext 并执行第一个查询, 对比默认启动和 fast profile
+ *
+ * fast profile 只验证表结构, 所以两种启动都使用同一个文件中的 H2 数据库, 由 main 方法预先建表;
+ * 默认启动用 hbm2ddl update, 和连接 MySQL 时一样(embedded profile 本身是 create)
+ * 通过系统属性覆盖 db.properties 中的配置
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+
+    private static final String JDBC_URL = "jdbc:h2:file:./target/startup-benchmark;MODE=MySQL";
+
+    @Benchmark
+    @Fork(value = 10, jvmArgsAppend = {"-Dspring.profiles.active=embedded",
+            "-Djdbc.jdbcUrl=" + JDBC_URL, "-Dhibernate.hbm2ddl.auto=update"})
+    public List<?> defaultStartup() {
+        return startAndQuery();
+    }
+
+    @Benchmark
+    @Fork(value = 10, jvmArgsAppend = {"-Dspring.profiles.active=embedded,fast",
+            "-Djdbc.jdbcUrl=" + JDBC_URL})
+    public List<?> fastStartup() {
+        return startAndQuery();
+    }
+
+    private static List<?> startAndQuery() {
+        ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext("applicationContext.xml");
+        try {
+            return ctx.getBean(PersonRepository.class).getByLastNameStartingWithAndIdLessThan("ln", 100);
+        } finally {
+            ctx.close();
+        }
+    }
+
+    // 在文件数据库中建表, 供两种启动方式使用
+    private static void createSchema() {
+        System.setProperty("jdbc.jdbcUrl", JDBC_URL);
+        System.setProperty("hibernate.hbm2ddl.auto", "create");
+        try {
+            ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext();
+            ctx.getEnvironment().setActiveProfiles("embedded");
+            ctx.setConfigLocation("applicationContext.xml");
+            ctx.refresh();
+            ctx.close();
+        } finally {
+            System.clearProperty("jdbc.jdbcUrl");
+            System.clearProperty("hibernate.hbm2ddl.auto");
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        createSchema();
+        Options options = new OptionsBuilder()
+                .include(StartupBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
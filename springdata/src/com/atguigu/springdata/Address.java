@@ -1,16 +1,29 @@
 package com.atguigu.springdata;
 
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Version;
 
+// 初始化 Address 的代理时, 一次最多把 50 个未加载的 Address 用 IN 查询一起加载
+@BatchSize(size = 50)
+// Address 基本只读, 放到二级缓存中, 区域配置见 ehcache-hibernate.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Table(name = "JPA_ADDRESS")
 @Entity
 public class Address {
     private Integer id;
     private String province;
     private String city;
+    private Integer version;
 
     @GeneratedValue
     @Id
@@ -37,4 +50,15 @@ public class Address {
     public void setCity(String city) {
         this.city = city;
     }
+
+    // 乐观锁的版本号, 见 Person
+    @Version
+    @Column(columnDefinition = "INT DEFAULT 0")
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
 }
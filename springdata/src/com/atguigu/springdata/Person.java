@@ -2,9 +2,28 @@ package com.atguigu.springdata;
 
 import java.util.Date;
 
+import com.atguigu.springdata.commonrepositorymethod.ShardKey;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+
 import javax.persistence.*;
 
+// 按 id 查询的热点 Person 放到二级缓存中, 区域配置见 ehcache-hibernate.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Table(name="JPA_PERSONS")
+// PersonRepository 中的查询方法需要的索引, 由 RepositoryIndexAdvisor 分析得出, hbm2ddl.auto=update 时会自动创建
+// appliesTo 是经过 ImprovedNamingStrategy 转换后的表名, columnNames 是逻辑列名(没有用 @Column 指定列名时即属性名)
+// 1. getByLastName, getByLastNameStartingWithAndIdLessThan: 等值或前缀匹配的 lastName 在前, id 在后
+// 2. getByEmail, getByEmailInOrBirthLessThan: OR 两边的条件各用一个索引
+// 3. getByAddress_IdGreaterThan, 以及和 Address 的关联查询
+@org.hibernate.annotations.Table(appliesTo = "jpa_persons", indexes = {
+        @Index(name = "IDX_JPA_PERSONS_LAST_NAME_ID", columnNames = {"lastName", "id"}),
+        @Index(name = "IDX_JPA_PERSONS_EMAIL", columnNames = {"email"}),
+        @Index(name = "IDX_JPA_PERSONS_BIRTH", columnNames = {"birth"}),
+        @Index(name = "IDX_JPA_PERSONS_ADDRESS_ID", columnNames = {"ADDRESS_ID"})
+})
 @Entity
 public class Person {
 
@@ -18,7 +37,14 @@ public class Person {
 
     private Integer addressId;
 
-    @GeneratedValue
+    private Integer version;
+
+    // 用 TABLE 生成器代替 AUTO(MySQL 下即 IDENTITY), 这样 Hibernate 可以预先分配一段 id, 从而支持 JDBC 批量插入
+    // 已有数据的表: 启动时由 IdGeneratorInitializer 把 JPA_ID_GENERATORS 中 PERSON_ID 的值初始化为 MAX(id) + allocationSize
+    @TableGenerator(name = "PERSON_ID_GENERATOR", table = "JPA_ID_GENERATORS",
+            pkColumnName = "GENERATOR_NAME", valueColumnName = "GENERATOR_VALUE",
+            pkColumnValue = "PERSON_ID", allocationSize = 50)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "PERSON_ID_GENERATOR")
     @Id
     public Integer getId() {
         return id;
@@ -28,6 +54,9 @@ public class Person {
         this.id = id;
     }
 
+    // 分库时(见 ShardRoutingDataSource)按 lastName 决定保存在哪个分片, 同名的人在同一个分片中, getByLastName 只查询一个分片
+    // 所以保存后不能原地修改 lastName(见 ShardKey), PersonWriteBehindBuffer 也不提供 lastName 的修改
+    @ShardKey
     public String getLastName() {
         return lastName;
     }
@@ -62,8 +91,10 @@ public class Person {
         this.addressId = addressId;
     }
 
+    // 懒加载, 避免每查一个 Person 都额外发一条 select 去查 Address
+    // 需要 Address 时使用 fetch join(见 FetchSpecifications), 否则由 Address 上的 @BatchSize 批量加载
     @JoinColumn(name="ADDRESS_ID")
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     public Address getAddress() {
         return address;
     }
@@ -72,9 +103,22 @@ public class Person {
         this.address = address;
     }
 
+    // 乐观锁: 每次修改版本号加一, UPDATE 时带上 WHERE version = ?, 被其他事务先修改了就会失败
+    // 失败后由 @RetryOnOptimisticLock 重试(见 PersonService), 不需要 SELECT ... FOR UPDATE 锁住记录
+    // 给已有数据的表加上这一列时, 已有的记录的版本号为 0
+    @Version
+    @Column(columnDefinition = "INT DEFAULT 0")
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "Person [id=" + id + ", lastName=" + lastName + ", email="
-                + email + ", brith=" + birth + "]";
+                + email + ", brith=" + birth + ", version=" + version + "]";
     }
 }
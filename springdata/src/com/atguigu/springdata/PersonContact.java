@@ -0,0 +1,12 @@
+package com.atguigu.springdata;
+
+/**
+ * 接口投影: 只查询 lastName 和 email 两列
+ * personRepository.findAll(spec, PersonContact.class) 返回该接口的动态代理
+ */
+public interface PersonContact {
+
+    String getLastName();
+
+    String getEmail();
+}
@@ -1,9 +1,35 @@
 package com.atguigu.springdata;
 
+import com.atguigu.springdata.commonrepositorymethod.EntityCallback;
+
+import java.util.Date;
+import java.util.List;
+
 /**
  * 为某一个 Repository 上添加自定义方法
  * 自定义接口,声明要实现的方法
  */
 public interface PersonDao {
     void test ();
+
+    /**
+     * 批量保存, 每 batchSize 条 flush 并 clear 一次 EntityManager, 使持久化上下文的大小保持有界
+     * 配合 hibernate.jdbc.batch_size 和驱动的 rewriteBatchedStatements 使用, 会被改写为多行 INSERT
+     * 有 id 的实体会 merge, 必须同时设置 version(@Version), 否则抛出 IllegalArgumentException
+     * @return 保存的记录数
+     */
+    int saveAllBatched (Iterable<Person> persons, int batchSize);
+
+    /**
+     * 以服务端游标的方式遍历全部 Person, 每处理一批就把实体从持久化上下文中分离, 内存占用与表的大小无关
+     * 需要在只读事务中调用, 回调中不能再访问数据库(MySQL 流式结果集未关闭前同一连接不能执行其他语句)
+     * @return 处理的记录数
+     */
+    long streamAll (EntityCallback<Person> callback);
+
+    // 与 findAll(ids) 相同的条件, 以游标方式遍历
+    long streamByIds (List<Integer> ids, EntityCallback<Person> callback);
+
+    // 与 getByEmailInOrBirthLessThan 相同的条件, 以游标方式遍历
+    long streamByEmailInOrBirthLessThan (List<String> emails, Date date, EntityCallback<Person> callback);
 }
@@ -1,16 +1,23 @@
 package com.atguigu.springdata;
 
+import com.atguigu.springdata.commonrepositorymethod.CommonMethodTest;
+import com.atguigu.springdata.commonrepositorymethod.NearCache;
+import com.atguigu.springdata.commonrepositorymethod.ShardKey;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.data.repository.Repository;
 import org.springframework.data.repository.RepositoryDefinition;
 import org.springframework.data.repository.query.Param;
 
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
 import javax.persistence.criteria.CriteriaBuilder;
 import java.util.Date;
 import java.util.List;
@@ -37,34 +44,72 @@ import java.util.List;
  * JpaRepository是PagingAndSortingRepository的子接口,定义了一些jpa的操作
  * JpaSpecificationExecutor不属于Repository的体系,但是PagingAndSortingRepository不能实现带查询条件的分页
  *  而,JpaSpecificationExecutor可以实现,也可以实现不分页的使用查询条件的分页
+ * CommonMethodTest是自定义的公共父接口, 继承了JpaRepository, 提供了键集分页等所有Repository共用的方法
  */
 //@RepositoryDefinition(domainClass = Person.class,idClass = Integer.class)
 //public interface PersonRepository extends Repository<Person, Integer>{
 //public interface PersonRepository extends CrudRepository<Person, Integer> {
 //public interface PersonRepository extends PagingAndSortingRepository<Person, Integer> {
-public interface PersonRepository extends JpaRepository<Person, Integer>,
+//public interface PersonRepository extends JpaRepository<Person, Integer>,
+//        JpaSpecificationExecutor<Person>, PersonDao {
+public interface PersonRepository extends CommonMethodTest<Person, Integer>,
         JpaSpecificationExecutor<Person>, PersonDao {
 
     // 根据lastName 来获取对应的 Person
-    Person getByLastName(String lastName);
+    // org.hibernate.cacheable: 使用查询缓存, 查询结果只缓存 id, 实体再从二级缓存中获取
+    // 查询缓存在 Person 的任何修改之后都会整个失效, 所以再加一层近端缓存, 命中时不访问数据库也不访问二级缓存
+    // 分库时 lastName 就是分片键, 只查询它所在的分片
+    @NearCache(maxEntries = 10000, ttlMillis = 60 * 1000, negativeTtlMillis = 5 * 1000)
+    @QueryHints({@QueryHint(name = "org.hibernate.cacheable", value = "true")})
+    Person getByLastName(@ShardKey String lastName);
+
+    // 根据 email 来获取对应的 Person, 同样使用近端缓存
+    @NearCache(maxEntries = 10000, ttlMillis = 60 * 1000, negativeTtlMillis = 5 * 1000)
+    Person getByEmail(String email);
 
     // WHERE lastName LIKE ?% AND id < ?
     List<Person> getByLastNameStartingWithAndIdLessThan(String lastName, Integer id);
 
+    // 同上, 但以只读方式查询: 不保存用于脏检查的快照, 适合只读取不修改的场景
+    @QueryHints({@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+    List<Person> readByLastNameStartingWithAndIdLessThan(String lastName, Integer id);
+
+    // 同上, 但只查询需要的列, 返回 DTO 而不是实体
+    // SpringData 的方法名查询只能返回实体, 所以使用 @Query 的构造器表达式
+    @Query("SELECT new com.atguigu.springdata.PersonSummary(p.id, p.lastName, p.email) FROM Person p "
+            + "WHERE p.lastName LIKE ?1% AND p.id < ?2")
+    List<PersonSummary> getSummaryByLastNameStartingWithAndIdLessThan(String lastName, Integer id);
+
     // WHERE lastName LIKE %? AND id < ?
     List<Person> getByLastNameEndingWithAndIdLessThan(String lastName, Integer id);
 
     // WHERE email IN (?,?,?) OR birth < ?
     List<Person> getByEmailInOrBirthLessThan(List<String> emails, Date date);
 
+    // WHERE email IN (?,?,?), 与下面的 getByBirthLessThan 一起代替上面的 OR 查询, 见 PersonService
+    List<Person> getByEmailIn(List<String> emails);
+
+    // WHERE birth < ?
+    List<Person> getByBirthLessThan(Date date);
+
     // WHERE a.id > ?
     // getByAddressIdGreaterThan会优先使用本类的属性,这会导致级联属性的失效
     // getByAddress_IdGreaterThan会优先使用级联属性,这会导致级联属性的失效
     List<Person> getByAddress_IdGreaterThan(Integer id);
 
+    // 同上, 但用 fetch join 把 Address 一起查出来, 只需要一条 SQL
+    @Query("SELECT p FROM Person p JOIN FETCH p.address a WHERE a.id > ?1")
+    List<Person> getWithAddressByAddressIdGreaterThan(Integer id);
+
+    // 悲观锁: SELECT ... FOR UPDATE, 在事务结束前其他事务不能修改这条记录, 用于和乐观锁对比
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT p FROM Person p WHERE p.id = ?1")
+    Person getForUpdateById(Integer id);
+
     //查询 id 值最大的那个 Person
     //使用 @Query 注解可以自定义 JPQL 语句以实现更灵活的查询
     @Query("SELECT p FROM Person p WHERE p.id = (SELECT MAX(p2.id) FROM Person p2) ")
+    @QueryHints({@QueryHint(name = "org.hibernate.cacheable", value = "true")})
     Person getMaxIdPerson ();
 
     //为 @Query 注解传递参数的方式1: 使用占位符.
@@ -90,7 +135,9 @@ public interface PersonRepository extends JpaRepository<Person, Integer>,
     //在 @Query 注解中编写 JPQL 语句, 但必须使用 @Modifying 进行修饰. 以通知 SpringData, 这是一个 UPDATE 或 DELETE 操作
     //UPDATE 或 DELETE 操作需要使用事务, 此时需要定义 Service 层. 在 Service 层的方法上添加事务操作.
     //默认情况下, SpringData 的每个方法上有事务, 但都是一个只读事务. 他们不能完成修改操作!
-    @Modifying
-    @Query("UPDATE Person p SET p.email = :email WHERE id = :id")
+    //批量的 UPDATE 会让 Person 的二级缓存区域和相关的查询缓存失效, clearAutomatically 再清空一级缓存
+    //JPQL 的 UPDATE 不会修改 @Version 的版本号, 需要手动加一, 这样其他事务中已经读到这条记录的修改会失败
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE Person p SET p.email = :email, p.version = p.version + 1 WHERE id = :id")
     void updatePersonEmail(@Param("id") Integer id, @Param("email") String email);
 }
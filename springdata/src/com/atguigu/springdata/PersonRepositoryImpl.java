@@ -1,7 +1,20 @@
 package com.atguigu.springdata;
 
+import com.atguigu.springdata.commonrepositorymethod.EntityCallback;
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
+
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import java.util.Date;
+import java.util.List;
 
 /**
  * 为某一个 Repository 上添加自定义方法
@@ -10,6 +23,11 @@ import javax.persistence.PersistenceContext;
  */
 public class PersonRepositoryImpl implements PersonDao {
 
+    // 游标遍历时每处理多少条清空一次持久化上下文
+    private static final int DETACH_INTERVAL = 1000;
+    // 不是 MySQL 时游标每次从数据库读取的行数
+    private static final int STREAM_FETCH_SIZE = 1000;
+
     @PersistenceContext
     private EntityManager entityManager;
     // 模拟一下,这样就直接打通了springData和jpa了
@@ -18,4 +36,91 @@ public class PersonRepositoryImpl implements PersonDao {
         Person person = entityManager.find(Person.class, 11);
         System.out.println("--->" + person);
     }
+
+    @Transactional
+    @Override
+    public int saveAllBatched(Iterable<Person> persons, int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be greater than 0");
+        int count = 0;
+        for (Person person : persons) {
+            // 没有id的直接persist, 不会像save那样先去select一次
+            if (person.getId() == null) {
+                entityManager.persist(person);
+            } else {
+                // version 为 null 的实体会被当作新的实体 INSERT 一条, 而不是修改 id 对应的记录
+                Assert.notNull(person.getVersion(), "Person with id " + person.getId()
+                        + " has no version and would be inserted as a new row, load it first or set its version");
+                entityManager.merge(person);
+            }
+            // 每攒够一批就发给数据库, 然后清空一级缓存, 否则几十万个实体都会留在持久化上下文里
+            if (++count % batchSize == 0) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+        return count;
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public long streamAll(EntityCallback<Person> callback) {
+        Query query = getSession().createQuery("SELECT p FROM Person p LEFT JOIN FETCH p.address ORDER BY p.id");
+        return scroll(query, callback);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public long streamByIds(List<Integer> ids, EntityCallback<Person> callback) {
+        Query query = getSession().createQuery("SELECT p FROM Person p LEFT JOIN FETCH p.address WHERE p.id IN (:ids)");
+        query.setParameterList("ids", ids);
+        return scroll(query, callback);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public long streamByEmailInOrBirthLessThan(List<String> emails, Date date, EntityCallback<Person> callback) {
+        Query query = getSession().createQuery("SELECT p FROM Person p LEFT JOIN FETCH p.address "
+                + "WHERE p.email IN (:emails) OR p.birth < :date");
+        query.setParameterList("emails", emails);
+        query.setParameter("date", date);
+        return scroll(query, callback);
+    }
+
+    private Session getSession() {
+        return entityManager.unwrap(Session.class);
+    }
+
+    // fetchSize 为 Integer.MIN_VALUE 时 MySQL 驱动逐行从服务端读取, 而不是把整个结果集读到内存(不需要在 URL 中加 useCursorFetch)
+    // 这是 MySQL 驱动特有的约定, 其他驱动(例如 embedded profile 的 H2)不接受负数, 使用正常的 fetchSize
+    private int streamFetchSize() {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) getSession().getSessionFactory();
+        return factory.getDialect() instanceof MySQLDialect ? Integer.MIN_VALUE : STREAM_FETCH_SIZE;
+    }
+
+    // address 用 fetch join 一起查出来, 因为流式结果集打开期间不能再发出加载关联对象的 select
+    private long scroll(Query query, EntityCallback<Person> callback) {
+        query.setFetchSize(streamFetchSize());
+        query.setReadOnly(true);
+        query.setCacheable(false);
+        // 导出时不读写二级缓存, 免得把热点数据挤出去
+        query.setCacheMode(CacheMode.IGNORE);
+
+        Session session = getSession();
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        long count = 0;
+        try {
+            while (results.next()) {
+                callback.process((Person) results.get(0));
+                if (++count % DETACH_INTERVAL == 0) {
+                    session.clear();
+                }
+            }
+        } finally {
+            results.close();
+        }
+        session.clear();
+        return count;
+    }
 }
@@ -1,28 +1,113 @@
 package com.atguigu.springdata;
 
+import com.atguigu.springdata.commonrepositorymethod.EntityCallback;
+import com.atguigu.springdata.commonrepositorymethod.InListChunker;
+import com.atguigu.springdata.retry.RetryOnOptimisticLock;
 import com.mchange.util.IteratorUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.concurrent.ListenableFuture;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Person 的业务方法
+ *
+ * 注意: Person 有 @Version, 保存时(savePersons、savePersonsBatched、changePersonEmail 等)
+ * 有 id 但 version 为 null 的 Person 会抛出 IllegalArgumentException, 而不是像以前一样被当作新记录插入,
+ * 修改已有的 Person 需要先查询出来, 或者同时设置 id 和 version(见 CommonMethodTest.save)
+ */
 @Service
 public class PersonService {
+    // 与 applicationContext.xml 中的 hibernate.jdbc.batch_size 保持一致
+    private static final int BATCH_SIZE = 50;
+
     @Autowired
     private PersonRepository personRepository;
 
+    // 执行异步查询的线程池, 见 applicationContext.xml 中的 repositoryExecutor
+    @Autowired
+    @Qualifier("repositoryExecutor")
+    private AsyncListenableTaskExecutor repositoryExecutor;
+
     @Transactional
     public void updatePersonEmail (String email, Integer id){
         personRepository.updatePersonEmail(id, email);
     }
 
+    // 乐观锁版本: 读出 Person 后修改, 提交时检查版本号, 与其他事务冲突时在新的事务中重新读取并修改
+    @RetryOnOptimisticLock
+    @Transactional
+    public Person changePersonEmail (Integer id, String email) {
+        Person person = personRepository.findOne(id);
+        person.setEmail(email);
+        // 托管的实体不调用 save 也会被更新, 调用 save 是为了经过 Repository, 让近端缓存失效
+        return personRepository.save(person);
+    }
+
+    // 悲观锁版本: SELECT ... FOR UPDATE 锁住记录直到事务结束, 同一条记录的修改只能排队执行
+    @Transactional
+    public Person changePersonEmailPessimistic (Integer id, String email) {
+        Person person = personRepository.getForUpdateById(id);
+        person.setEmail(email);
+        // 同上, 经过 Repository 让近端缓存失效
+        return personRepository.save(person);
+    }
+
+    // 一次修改多个 Person 的 email, 用一个事务和 JDBC 批处理代替循环调用 updatePersonEmail
+    @Transactional
+    public int updatePersonEmails (Map<Integer, String> emailsById) {
+        return personRepository.updateInBatch("email", emailsById);
+    }
+
     public void savePersons (List<Person> persons) {
         personRepository.save(persons);
     }
 
+    // 大批量导入时使用, 按 BATCH_SIZE 条一批写入
+    @Transactional
+    public int savePersonsBatched (List<Person> persons) {
+        return personRepository.saveAllBatched(persons, BATCH_SIZE);
+    }
+
+    // 同步任务使用: 不管记录是否已经存在, 每 50 条只需要一条 INSERT ... ON DUPLICATE KEY UPDATE 语句
+    // updateAttributes 为已存在的记录要修改的属性, 为空时修改所有的属性
+    @Transactional
+    public int upsertPersons (List<Person> persons, String... updateAttributes) {
+        return personRepository.upsertAll(persons, updateAttributes);
+    }
+
+    // 导出全部 Person, 在只读事务中以游标方式逐行交给 callback 处理
+    @Transactional(readOnly = true)
+    public long exportPersons (EntityCallback<Person> callback) {
+        return personRepository.streamAll(callback);
+    }
+
+    // 导出全部 Person 的并行版本: 按 id 范围分成 partitions 段, 每段使用一个线程和一个连接
+    // 导出不常执行, 每次使用单独的线程池, 不占用处理其他请求的线程; partitions 不应超过连接池的大小
+    public long exportPersonsParallel (int partitions, EntityCallback<Person> callback) {
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            return personRepository.scanPartitioned(null, partitions, executor, callback);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     // 注意对于findAll返回的是一个Iterable接口类型的,而不是util里面那个类
     public List<Person> findPersonsByIds (List<Integer> ids) {
         Iterable<Person> it =  personRepository.findAll(ids);
@@ -35,4 +120,56 @@ public class PersonService {
         }
         return persons;
     }
+
+    // 与 getByEmailInOrBirthLessThan 的结果相同, 但 email 列表很长时拆分成若干条查询
+    // 如果每段都带上 OR birth < ?, birth 的条件会被重复查询, email 为空时又一条都不查, 丢掉了 birth 的结果
+    // 所以 birth 的条件单独查询一次, email 的每一段只查 IN, 条件是 OR 连接的, 结果取并集, 按 id 去重
+    @Transactional(readOnly = true)
+    public List<Person> getByEmailInOrBirthLessThan (List<String> emails, Date date) {
+        Map<Integer, Person> persons = new LinkedHashMap<>();
+        for (Person person : personRepository.getByBirthLessThan(date)) {
+            persons.put(person.getId(), person);
+        }
+        for (List<String> chunk : InListChunker.chunk(emails)) {
+            for (Person person : personRepository.getByEmailIn(chunk)) {
+                persons.put(person.getId(), person);
+            }
+        }
+        return new ArrayList<>(persons.values());
+    }
+
+    /*
+     * 异步查询: 多个互不依赖的查询可以同时执行, 例如一个页面需要的 getByLastName, getTotalCount 和分页查询
+     * 注意:
+     * 1. 事务是与线程绑定的, 每个查询在线程池的线程中开启自己的只读事务(Repository 方法上的事务),
+     *    所以这些方法不加 @Transactional, 在调用者的事务中执行也看不到调用者还没有提交的修改
+     * 2. 每个正在执行的查询占用一个数据库连接, 线程池的大小不应超过连接池的大小
+     * 3. 线程池的队列满了以后由调用者的线程执行, 相当于退化为同步查询
+     */
+    public ListenableFuture<Person> getByLastNameAsync (final String lastName) {
+        return repositoryExecutor.submitListenable(new Callable<Person>() {
+            @Override
+            public Person call() {
+                return personRepository.getByLastName(lastName);
+            }
+        });
+    }
+
+    public ListenableFuture<Long> getTotalCountAsync () {
+        return repositoryExecutor.submitListenable(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return personRepository.getTotalCount();
+            }
+        });
+    }
+
+    public ListenableFuture<Page<Person>> findAllAsync (final Specification<Person> specification, final Pageable pageable) {
+        return repositoryExecutor.submitListenable(new Callable<Page<Person>>() {
+            @Override
+            public Page<Person> call() {
+                return personRepository.findAll(specification, pageable);
+            }
+        });
+    }
 }
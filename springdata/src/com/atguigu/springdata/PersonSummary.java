@@ -0,0 +1,36 @@
+package com.atguigu.springdata;
+
+/**
+ * Person 的摘要, 用于只需要显示 lastName 和 email 的查询
+ * 通过 JPQL 的构造器表达式 SELECT new com.atguigu.springdata.PersonSummary(...) 创建,
+ * 只查询这三列, 不会创建 Person 实体, 也不会放入持久化上下文
+ */
+public class PersonSummary {
+
+    private final Integer id;
+    private final String lastName;
+    private final String email;
+
+    public PersonSummary(Integer id, String lastName, String email) {
+        this.id = id;
+        this.lastName = lastName;
+        this.email = email;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    @Override
+    public String toString() {
+        return "PersonSummary [id=" + id + ", lastName=" + lastName + ", email=" + email + "]";
+    }
+}
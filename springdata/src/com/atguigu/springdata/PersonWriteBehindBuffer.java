@@ -0,0 +1,539 @@
+package com.atguigu.springdata;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Person 的延迟写入(write-behind): 同一个人的高频修改先放在内存中, 同一条记录的同一个属性只保留最后一次的值,
+ * 再定时或者积累到 maxPending 条时用 updateInBatch 批量写入, 代替每次修改都调用一次 PersonService.updatePersonEmail
+ *
+ * 1. 修改方法只放入缓冲区, 不访问数据库; 写入之前从数据库(以及二级缓存、近端缓存)读到的还是旧值,
+ *    需要立即看到新值时先调用 flush()
+ * 2. 每个属性的修改在一个事务中写入, 写入成功后才从缓冲区移除; 写入期间又被修改的记录保留新值, 下一次再写入
+ *    整批失败时逐条重新写入, 找出出错的记录, 其他记录照常写入; 同一条修改失败 maxAttempts 次后记录到错误日志并丢弃,
+ *    不会因为一条坏数据让这个属性的修改永远写不进去. 连不上数据库这类与具体记录无关的错误不计入次数, 全部保留到下一次 flush
+ * 3. 缓冲的数量达到 maxPending 的 2 倍(例如数据库变慢)时, 修改方法在调用者的线程中同步 flush, 避免缓冲区无限增长
+ * 4. 持久性: 关闭 ApplicationContext 时(destroy-method)同步写入剩余的修改;
+ *    设置了 logFile 时每次修改先追加到本地日志, 进程崩溃后重启时重放日志中没有写入的修改,
+ *    每次 flush 之后日志重写为缓冲区中剩余的修改. 日志默认只写到操作系统的缓存, 能应对进程崩溃,
+ *    需要应对机器掉电时设置 syncLog=true, 每条修改调用一次 fsync, 代价是修改方法变慢
+ * 5. 写入绕过了乐观锁的检查(version 加 1), 适合"最后一次修改生效"的属性, 不要用于需要读-改-写的属性
+ * 6. 不能修改分片键 lastName(见 Person): 分库时原地修改会让记录留在原来的分片上, updateInBatch 会拒绝这样的修改
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=WriteBehind,name=personWriteBehindBuffer")
+public class PersonWriteBehindBuffer {
+
+    private static final Log LOG = LogFactory.getLog(PersonWriteBehindBuffer.class);
+
+    private PersonRepository personRepository;
+    private int maxPending = 500;
+    private long flushIntervalMillis = 1000;
+    private File logFile;
+    private boolean syncLog;
+    private int maxAttempts = 3;
+
+    // 属性名 -> (id -> 最后一次的修改)
+    private final ConcurrentMap<String, ConcurrentMap<Integer, PendingWrite>> pending =
+            new ConcurrentHashMap<String, ConcurrentMap<Integer, PendingWrite>>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private ScheduledExecutorService scheduler;
+
+    // 追加修改和重写日志互斥, 保证日志和缓冲区的内容一致
+    private final Object logLock = new Object();
+    private FileOutputStream logStream;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+
+    public void setPersonRepository(PersonRepository personRepository) {
+        this.personRepository = personRepository;
+    }
+
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    // 为空时不写日志
+    public void setLogFile(String logFile) {
+        this.logFile = StringUtils.hasText(logFile) ? new File(logFile) : null;
+    }
+
+    public void setSyncLog(boolean syncLog) {
+        this.syncLog = syncLog;
+    }
+
+    // 一条修改最多写入的次数, 之后丢弃
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void start() throws IOException {
+        if (logFile != null) {
+            replayLog();
+            synchronized (logLock) {
+                logStream = new FileOutputStream(logFile, true);
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "person-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushQuietly();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        if (depth.get() > 0) {
+            // 上次崩溃时没有写入的修改, 写入失败时留给定时任务重试
+            scheduleFlush();
+        }
+    }
+
+    public void updateEmail(Integer id, String email) {
+        buffer("email", id, email);
+    }
+
+    public void updateBirth(Integer id, Date birth) {
+        buffer("birth", id, birth);
+    }
+
+    private void buffer(String attribute, Integer id, Object value) {
+        if (closed) {
+            throw new IllegalStateException("PersonWriteBehindBuffer is closed");
+        }
+        if (depth.get() >= maxPending * 2) {
+            flush();
+        }
+        PendingWrite write = new PendingWrite(value);
+        if (logFile != null) {
+            // logStream 只在 logLock 中读写: close() 和 rewriteLog() 会把它关闭并置为 null
+            synchronized (logLock) {
+                if (closed) {
+                    throw new IllegalStateException("PersonWriteBehindBuffer is closed");
+                }
+                if (logStream == null) {
+                    throw new IllegalStateException("Cannot write " + logFile + ", the log is not open");
+                }
+                try {
+                    appendLog(logStream, attribute, id, value);
+                    if (syncLog) {
+                        logStream.getFD().sync();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write " + logFile, e);
+                }
+                put(attribute, id, write);
+            }
+        } else {
+            put(attribute, id, write);
+        }
+        updates.incrementAndGet();
+        if (depth.get() >= maxPending) {
+            scheduleFlush();
+        }
+    }
+
+    private void put(String attribute, Integer id, PendingWrite write) {
+        ConcurrentMap<Integer, PendingWrite> writes = pending.get(attribute);
+        if (writes == null) {
+            ConcurrentMap<Integer, PendingWrite> created = new ConcurrentHashMap<Integer, PendingWrite>();
+            writes = pending.putIfAbsent(attribute, created);
+            if (writes == null) {
+                writes = created;
+            }
+        }
+        if (writes.put(id, write) == null) {
+            depth.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flushQuietly();
+                }
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.warn("Write-behind flush failed, " + depth.get() + " updates will be retried", e);
+        }
+    }
+
+    /**
+     * 同步写入缓冲区中的修改, 返回写入的记录数; 同一时间只有一个 flush 在执行
+     */
+    @ManagedOperation(description = "立即写入缓冲区中的修改")
+    public synchronized int flush() {
+        if (depth.get() == 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long deadLettersBefore = deadLetters.get();
+        int flushed = 0;
+        try {
+            for (Map.Entry<String, ConcurrentMap<Integer, PendingWrite>> entry : pending.entrySet()) {
+                ConcurrentMap<Integer, PendingWrite> writes = entry.getValue();
+                if (writes.isEmpty()) {
+                    continue;
+                }
+                Map<Integer, PendingWrite> snapshot = new HashMap<>(writes);
+                Map<Integer, Object> valuesById = new LinkedHashMap<>();
+                for (Map.Entry<Integer, PendingWrite> write : snapshot.entrySet()) {
+                    valuesById.put(write.getKey(), write.getValue().value);
+                }
+                try {
+                    personRepository.updateInBatch(entry.getKey(), valuesById);
+                } catch (RuntimeException e) {
+                    if (isOutage(e)) {
+                        throw e;
+                    }
+                    LOG.warn("Write-behind batch of " + entry.getKey() + " failed, writing " + snapshot.size()
+                            + " updates one by one", e);
+                    flushed += flushOneByOne(entry.getKey(), writes, snapshot);
+                    continue;
+                }
+                for (Map.Entry<Integer, PendingWrite> write : snapshot.entrySet()) {
+                    remove(writes, write.getKey(), write.getValue());
+                }
+                flushed += snapshot.size();
+            }
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            if (flushed > 0 || deadLetters.get() != deadLettersBefore) {
+                rewriteLog();
+            }
+            recordFlush(System.nanoTime() - start, flushed);
+        }
+        return flushed;
+    }
+
+    /**
+     * 逐条写入, 返回写入成功的记录数; 失败的修改记一次失败, 达到 maxAttempts 次后丢弃
+     */
+    private int flushOneByOne(String attribute, ConcurrentMap<Integer, PendingWrite> writes,
+                              Map<Integer, PendingWrite> snapshot) {
+        int flushed = 0;
+        for (Map.Entry<Integer, PendingWrite> write : snapshot.entrySet()) {
+            Integer id = write.getKey();
+            PendingWrite pendingWrite = write.getValue();
+            try {
+                personRepository.updateInBatch(attribute, Collections.singletonMap(id, pendingWrite.value));
+            } catch (RuntimeException e) {
+                if (isOutage(e)) {
+                    throw e;
+                }
+                if (++pendingWrite.attempts >= maxAttempts && remove(writes, id, pendingWrite)) {
+                    deadLetters.incrementAndGet();
+                    LOG.error("Dropping write-behind update of Person " + id + "." + attribute + " = "
+                            + pendingWrite.value + " after " + pendingWrite.attempts + " failed attempts", e);
+                }
+                continue;
+            }
+            remove(writes, id, pendingWrite);
+            flushed++;
+        }
+        return flushed;
+    }
+
+    // 只移除已经写入的值, 写入期间的新修改留到下一次
+    private boolean remove(ConcurrentMap<Integer, PendingWrite> writes, Integer id, PendingWrite write) {
+        if (writes.remove(id, write)) {
+            depth.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // 连不上数据库、超时、死锁等与具体记录无关的错误, 等下一次 flush 整批重试
+    private static boolean isOutage(RuntimeException e) {
+        return e instanceof DataAccessResourceFailureException || e instanceof TransientDataAccessException
+                || e instanceof CannotCreateTransactionException;
+    }
+
+    private void recordFlush(long nanos, int flushed) {
+        flushes.incrementAndGet();
+        flushedRows.addAndGet(flushed);
+        totalFlushNanos.addAndGet(nanos);
+        lastFlushNanos.set(nanos);
+        long max;
+        while (nanos > (max = maxFlushNanos.get()) && !maxFlushNanos.compareAndSet(max, nanos)) {
+        }
+    }
+
+    /**
+     * 停止定时任务并写入剩余的修改, 写入失败时修改仍然保留在日志中, 下次启动时重放
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        try {
+            flush();
+        } finally {
+            synchronized (logLock) {
+                closeLog();
+            }
+        }
+    }
+
+    // 日志的格式: 每条修改为 属性名(UTF), id(int), 值的长度(int), 序列化后的值
+    private static void appendLog(FileOutputStream stream, String attribute, Integer id, Object value)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream valueOut = new ObjectOutputStream(bytes);
+        valueOut.writeObject(value);
+        valueOut.close();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeUTF(attribute);
+        out.writeInt(id);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.flush();
+        // 一条修改一次 write, 崩溃时最多丢失最后一条不完整的记录
+        stream.write(record.toByteArray());
+    }
+
+    private void replayLog() throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(logFile));
+        try {
+            DataInputStream data = new DataInputStream(in);
+            for (;;) {
+                String attribute;
+                try {
+                    attribute = data.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    Integer id = data.readInt();
+                    byte[] value = new byte[data.readInt()];
+                    data.readFully(value);
+                    ObjectInputStream valueIn = new ObjectInputStream(new ByteArrayInputStream(value));
+                    put(attribute, id, new PendingWrite(valueIn.readObject()));
+                    replayed.incrementAndGet();
+                } catch (IOException | ClassNotFoundException e) {
+                    // 崩溃时写了一半的最后一条记录
+                    LOG.warn("Ignoring incomplete record at the end of " + logFile, e);
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        LOG.info("Replayed " + replayed.get() + " updates from " + logFile + ", " + depth.get() + " pending");
+    }
+
+    // 先写到临时文件再替换, 重写的过程中崩溃也不会丢失日志
+    private void rewriteLog() {
+        if (logFile == null) {
+            return;
+        }
+        synchronized (logLock) {
+            if (logStream == null) {
+                return;
+            }
+            File tmp = new File(logFile.getPath() + ".tmp");
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    for (Map.Entry<String, ConcurrentMap<Integer, PendingWrite>> entry : pending.entrySet()) {
+                        for (Map.Entry<Integer, PendingWrite> write : entry.getValue().entrySet()) {
+                            appendLog(out, entry.getKey(), write.getKey(), write.getValue().value);
+                        }
+                    }
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                closeLog();
+                Files.move(tmp.toPath(), logFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                logStream = new FileOutputStream(logFile, true);
+            } catch (IOException e) {
+                // 原来的日志还在, 只是多了已经写入的修改, 重放时会再写一次相同的值
+                LOG.warn("Cannot rewrite " + logFile, e);
+                if (logStream == null) {
+                    try {
+                        logStream = new FileOutputStream(logFile, true);
+                    } catch (IOException reopen) {
+                        throw new IllegalStateException("Cannot reopen " + logFile, reopen);
+                    }
+                }
+            }
+        }
+    }
+
+    private void closeLog() {
+        if (logStream != null) {
+            try {
+                logStream.close();
+            } catch (IOException e) {
+                LOG.warn("Cannot close " + logFile, e);
+            }
+            logStream = null;
+        }
+    }
+
+    @ManagedAttribute(description = "缓冲区中等待写入的记录数")
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    @ManagedAttribute(description = "修改方法的调用次数")
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    @ManagedAttribute(description = "被同一条记录后来的修改覆盖, 不需要写入的次数")
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @ManagedAttribute(description = "flush 的次数")
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @ManagedAttribute(description = "写入的记录数")
+    public long getFlushedRows() {
+        return flushedRows.get();
+    }
+
+    @ManagedAttribute(description = "flush 失败的次数")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @ManagedAttribute(description = "失败 maxAttempts 次后丢弃的修改数")
+    public long getDeadLetters() {
+        return deadLetters.get();
+    }
+
+    @ManagedAttribute(description = "启动时从日志中重放的修改数")
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    @ManagedAttribute(description = "平均每次 flush 的耗时(毫秒)")
+    public double getAverageFlushMillis() {
+        long count = flushes.get();
+        return count == 0 ? 0 : totalFlushNanos.get() / 1e6 / count;
+    }
+
+    @ManagedAttribute(description = "最近一次 flush 的耗时(毫秒)")
+    public double getLastFlushMillis() {
+        return lastFlushNanos.get() / 1e6;
+    }
+
+    @ManagedAttribute(description = "flush 的最长耗时(毫秒)")
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    @ManagedOperation(description = "清空统计信息")
+    public void resetStatistics() {
+        updates.set(0);
+        coalesced.set(0);
+        flushes.set(0);
+        flushedRows.set(0);
+        failures.set(0);
+        deadLetters.set(0);
+        totalFlushNanos.set(0);
+        maxFlushNanos.set(0);
+        lastFlushNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "PersonWriteBehindBuffer [queueDepth=" + getQueueDepth() + ", updates=" + getUpdates()
+                + ", coalesced=" + getCoalesced() + ", flushes=" + getFlushes() + ", flushedRows=" + getFlushedRows()
+                + ", failures=" + getFailures() + ", deadLetters=" + getDeadLetters()
+                + ", avgFlushMillis=" + String.format("%.2f", getAverageFlushMillis())
+                + ", maxFlushMillis=" + String.format("%.2f", getMaxFlushMillis()) + "]";
+    }
+
+    // 用对象本身(而不是值)判断是否被覆盖, 值可以为 null, 两次修改为相同的值也能区分
+    private static class PendingWrite {
+        final Object value;
+        // 逐条写入失败的次数, 只在 flush 中修改
+        int attempts;
+
+        PendingWrite(Object value) {
+            this.value = value;
+        }
+    }
+}
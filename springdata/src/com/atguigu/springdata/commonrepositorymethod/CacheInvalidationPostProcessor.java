@@ -0,0 +1,74 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Method;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.repository.core.RepositoryInformation;
+import org.springframework.data.repository.core.support.RepositoryProxyPostProcessor;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 为 Repository 代理添加拦截器: 调用写操作(save* / delete* / update* / @Modifying)之后, 让该实体类型的 count 缓存和近端缓存(@NearCache)失效
+ * 如果在事务中, 事务结束后会再失效一次, 避免其他线程在提交之前又把旧值放回缓存
+ */
+public class CacheInvalidationPostProcessor implements RepositoryProxyPostProcessor {
+
+	private final NearCacheManager nearCacheManager;
+
+	public CacheInvalidationPostProcessor(NearCacheManager nearCacheManager) {
+		this.nearCacheManager = nearCacheManager;
+	}
+
+	@Override
+	public void postProcess(ProxyFactory factory, RepositoryInformation repositoryInformation) {
+		factory.addAdvice(new CacheInvalidationInterceptor(repositoryInformation.getDomainType(), nearCacheManager));
+	}
+
+	static boolean isWriteMethod(Method method) {
+		String name = method.getName();
+		return name.startsWith("save") || name.startsWith("delete") || name.startsWith("update")
+				|| name.startsWith("upsert")
+				|| AnnotationUtils.findAnnotation(method, Modifying.class) != null;
+	}
+
+	private static class CacheInvalidationInterceptor implements MethodInterceptor {
+
+		private final Class<?> domainType;
+		private final NearCacheManager nearCacheManager;
+
+		CacheInvalidationInterceptor(Class<?> domainType, NearCacheManager nearCacheManager) {
+			this.domainType = domainType;
+			this.nearCacheManager = nearCacheManager;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			if (!isWriteMethod(invocation.getMethod())) {
+				return invocation.proceed();
+			}
+			try {
+				return invocation.proceed();
+			} finally {
+				invalidate();
+				if (TransactionSynchronizationManager.isSynchronizationActive()) {
+					TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCompletion(int status) {
+							invalidate();
+						}
+					});
+				}
+			}
+		}
+
+		private void invalidate() {
+			CountQueryCache.invalidate(domainType);
+			nearCacheManager.invalidate(domainType);
+		}
+	}
+}
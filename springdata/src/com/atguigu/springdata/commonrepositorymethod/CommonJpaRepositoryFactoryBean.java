@@ -4,28 +4,128 @@ import java.io.Serializable;
 
 import javax.persistence.EntityManager;
 
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryUtils;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
 import org.springframework.data.jpa.repository.support.JpaRepositoryFactoryBean;
 import org.springframework.data.repository.Repository;
 import org.springframework.data.repository.core.RepositoryMetadata;
 import org.springframework.data.repository.core.support.RepositoryFactorySupport;
+import org.springframework.data.repository.query.QueryLookupStrategy;
+import org.springframework.data.repository.query.QueryLookupStrategy.Key;
+
+import com.atguigu.springdata.datasource.ReadWriteRoutingDataSource;
+import com.atguigu.springdata.datasource.ShardRoutingDataSource;
 
 public class CommonJpaRepositoryFactoryBean<T extends Repository<S, ID>, S, ID extends Serializable>
 		extends JpaRepositoryFactoryBean<T, S, ID> {
 
+	// 容器中没有 NearCacheManager 时自动注册的 bean 的名字
+	private static final String NEAR_CACHE_MANAGER_BEAN_NAME = "nearCacheManager";
+
+	private boolean lazyQueries = false;
+	private ShardRoutingDataSource shardRoutingDataSource;
+	private ReadWriteRoutingDataSource readWriteRoutingDataSource;
+	private NearCacheManager nearCacheManager;
+
+	/**
+	 * 为 true 时第一次调用查询方法时才创建查询, 见 LazyQueryLookupStrategy
+	 * 通过 jpa:repositories 扫描的 Repository 不能设置这个属性, fast profile 中显式声明的 Repository 设置为 true
+	 */
+	public void setLazyQueries(boolean lazyQueries) {
+		this.lazyQueries = lazyQueries;
+	}
+
+	/**
+	 * 分库时按 @ShardKey 路由 Repository 的方法, 见 ShardingPostProcessor
+	 * 不设置时使用容器中唯一的 ShardRoutingDataSource(jpa:repositories 扫描的 Repository 不能设置属性), 没有时不分片
+	 */
+	public void setShardRoutingDataSource(ShardRoutingDataSource shardRoutingDataSource) {
+		this.shardRoutingDataSource = shardRoutingDataSource;
+	}
+
+	/**
+	 * 读写分离时, 刚写入过数据的线程读取主库, 这时不使用 @NearCache 的缓存, 见 NearCachePostProcessor
+	 * 不设置时使用容器中唯一的 ReadWriteRoutingDataSource, 没有时不需要判断
+	 */
+	public void setReadWriteRoutingDataSource(ReadWriteRoutingDataSource readWriteRoutingDataSource) {
+		this.readWriteRoutingDataSource = readWriteRoutingDataSource;
+	}
+
+	/**
+	 * @NearCache 的缓存和写操作之后的失效都由它管理, 同一个容器中的 Repository 必须使用同一个
+	 * 不设置时使用容器中唯一的 NearCacheManager, 没有时创建一个注册到容器中
+	 */
+	public void setNearCacheManager(NearCacheManager nearCacheManager) {
+		this.nearCacheManager = nearCacheManager;
+	}
+
+	@Override
+	public void setBeanFactory(BeanFactory beanFactory) {
+		super.setBeanFactory(beanFactory);
+		if (shardRoutingDataSource == null && beanFactory instanceof ListableBeanFactory) {
+			// 只按 bean 定义的类型查找, 不为了判断类型而提前创建其他的 FactoryBean(例如其他的 Repository)
+			String[] names = BeanFactoryUtils.beanNamesForTypeIncludingAncestors(
+					(ListableBeanFactory) beanFactory, ShardRoutingDataSource.class, false, false);
+			if (names.length == 1) {
+				shardRoutingDataSource = beanFactory.getBean(names[0], ShardRoutingDataSource.class);
+			}
+		}
+		if (readWriteRoutingDataSource == null && beanFactory instanceof ListableBeanFactory) {
+			String[] names = BeanFactoryUtils.beanNamesForTypeIncludingAncestors(
+					(ListableBeanFactory) beanFactory, ReadWriteRoutingDataSource.class, false, false);
+			if (names.length == 1) {
+				readWriteRoutingDataSource = beanFactory.getBean(names[0], ReadWriteRoutingDataSource.class);
+			}
+		}
+		if (nearCacheManager == null && beanFactory instanceof ListableBeanFactory) {
+			nearCacheManager = findOrRegisterNearCacheManager((ListableBeanFactory) beanFactory);
+		}
+	}
+
+	private static NearCacheManager findOrRegisterNearCacheManager(ListableBeanFactory beanFactory) {
+		synchronized (beanFactory) {
+			String[] names = BeanFactoryUtils.beanNamesForTypeIncludingAncestors(
+					beanFactory, NearCacheManager.class, false, false);
+			if (names.length == 1) {
+				return beanFactory.getBean(names[0], NearCacheManager.class);
+			}
+			NearCacheManager created = new NearCacheManager();
+			if (names.length == 0 && beanFactory instanceof ConfigurableListableBeanFactory) {
+				((ConfigurableListableBeanFactory) beanFactory).registerSingleton(NEAR_CACHE_MANAGER_BEAN_NAME, created);
+			}
+			return created;
+		}
+	}
+
 	protected RepositoryFactorySupport createRepositoryFactory(
 			EntityManager entityManager) {
-		return new CommonRepositoryFactory(entityManager);
+		NearCacheManager manager = nearCacheManager != null ? nearCacheManager : new NearCacheManager();
+		return new CommonRepositoryFactory(entityManager, lazyQueries, shardRoutingDataSource,
+				readWriteRoutingDataSource, manager);
 	}
 
 	private static class CommonRepositoryFactory<T, I extends Serializable>
 			extends JpaRepositoryFactory {
 
 		private EntityManager entityManager;
+		private boolean lazyQueries;
 
-		public CommonRepositoryFactory(EntityManager entityManager) {
+		public CommonRepositoryFactory(EntityManager entityManager, boolean lazyQueries,
+				ShardRoutingDataSource shardRoutingDataSource, ReadWriteRoutingDataSource readWriteRoutingDataSource,
+				NearCacheManager nearCacheManager) {
 			super(entityManager);
 			this.entityManager = entityManager;
+			this.lazyQueries = lazyQueries;
+			addRepositoryProxyPostProcessor(new RepositoryMetricsPostProcessor());
+			addRepositoryProxyPostProcessor(new CacheInvalidationPostProcessor(nearCacheManager));
+			addRepositoryProxyPostProcessor(new NearCachePostProcessor(nearCacheManager, readWriteRoutingDataSource));
+			// 在缓存之后, 命中缓存时不需要访问分片
+			if (shardRoutingDataSource != null) {
+				addRepositoryProxyPostProcessor(new ShardingPostProcessor(shardRoutingDataSource));
+			}
 		}
 
 		protected Object getTargetRepository(RepositoryMetadata metadata) {
@@ -34,7 +134,13 @@ public class CommonJpaRepositoryFactoryBean<T extends Repository<S, ID>, S, ID e
 		}
 
 		protected Class<?> getRepositoryBaseClass(RepositoryMetadata metadata) {
-			return CommonMethodTest.class;
+			return CommonMethodTestImpl.class;
+		}
+
+		@Override
+		protected QueryLookupStrategy getQueryLookupStrategy(Key key) {
+			QueryLookupStrategy strategy = super.getQueryLookupStrategy(key);
+			return lazyQueries ? new LazyQueryLookupStrategy(strategy) : strategy;
 		}
 	}
 
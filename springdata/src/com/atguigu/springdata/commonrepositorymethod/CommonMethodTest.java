@@ -1,14 +1,129 @@
 package com.atguigu.springdata.commonrepositorymethod;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.repository.NoRepositoryBean;
 
 @NoRepositoryBean
 public interface CommonMethodTest<T, ID extends Serializable> 
-	extends JpaRepository<T, ID>{
+	extends JpaRepository<T, ID>, JpaSpecificationExecutor<T> {
 
 	void method();
-	
+
+	/**
+	 * 与 JpaRepository.save 相同, 但实体有 @Version 且 id 由生成器生成时,
+	 * 有 id 而 version 为 null 的实体会抛出 IllegalArgumentException(以前会被当作新记录再插入一条);
+	 * 修改已有的记录需要先查询出来, 或者同时设置 id 和 version. saveAndFlush 和 save(Iterable) 同样检查
+	 */
+	@Override
+	<S extends T> S save(S entity);
+
+	/**
+	 * 按 id 批量查询, 很长的 id 列表会用 InListChunker 拆分成若干条 IN 查询
+	 * 结果按传入的 id 的顺序排列, 不存在的 id 会被跳过, 重复的 id 只返回一次
+	 */
+	@Override
+	List<T> findAll(Iterable<ID> ids);
+
+	/**
+	 * 与 findAll(ids) 相同, 但每一段 IN 查询在 executor 中并行执行, 各自使用单独的 EntityManager 和连接
+	 * 返回的实体不在当前的持久化上下文中
+	 */
+	List<T> findAll(Iterable<ID> ids, ExecutorService executor);
+
+	/**
+	 * 分区并行扫描: 把满足条件的记录的 id 范围 [min, max] 平均分成 partitions 段, 每段在 executor 中用单独的
+	 * EntityManager 和连接按 id 顺序分页读取, 读到的实体放入一个有界队列, 由调用者的线程逐条交给 callback 处理
+	 * callback 处理得慢时队列会满, 读取的线程会等待, 内存占用不会随表的大小增长
+	 * 注意:
+	 * 1. 实体的 id 必须是数字; id 分布不均匀时各段的记录数也不均匀
+	 * 2. 交给 callback 的实体已经是游离状态, 需要关联对象时用 FetchSpecifications.fetch 一起查出来
+	 * 3. executor 的线程数决定了并行度, 不应超过连接池的大小, 也不能使用 CallerRunsPolicy(调用者线程会在队列上死锁)
+	 * 4. 各段之间没有顺序, 也不在同一个事务中, 扫描期间的修改可能只被部分读到
+	 * @param spec 查询条件, 可以为 null
+	 * @return 处理的记录数
+	 */
+	long scanPartitioned(Specification<T> spec, int partitions, ExecutorService executor, EntityCallback<T> callback);
+
+	/**
+	 * 键集分页: WHERE spec AND id > 上一页最后一个 id ORDER BY id LIMIT size
+	 * 不执行 count 查询, 翻到多深的页耗时都和第一页差不多
+	 * @param spec 查询条件, 可以为 null
+	 * @param continuationToken 上一页返回的令牌, 查询第一页时传 null
+	 */
+	KeysetSlice<T> findSlice(Specification<T> spec, String continuationToken, int size);
+
+	/**
+	 * 按 offset 分页, 但不执行 count 查询, 多查一条来判断是否有下一页
+	 */
+	OffsetSlice<T> findSlice(Specification<T> spec, Pageable pageable);
+
+	/**
+	 * 与 findAll(spec, pageable) 相同, 但 count 的结果会按查询条件缓存一段时间(见 CountQueryCache)
+	 * 通过 Repository 对该实体执行 save / delete / @Modifying 操作后缓存失效
+	 */
+	Page<T> findAllWithCachedCount(Specification<T> spec, Pageable pageable);
+
+	/**
+	 * 批量修改满足条件的记录: 先查出 id, 再按 id 分批执行 JPQL 的 UPDATE ... WHERE id IN (...)
+	 * 持久化上下文中已有的对应实体会被刷新, 有 @Version 时版本号加一
+	 * @param values 属性名到新值的映射
+	 * @return 修改的记录数
+	 */
+	int updateAll(Specification<T> spec, Map<String, ?> values);
+
+	/**
+	 * 批量删除满足条件的记录, 与 updateAll 相同, 不会级联删除
+	 * 持久化上下文中已有的对应实体会被分离
+	 * @return 删除的记录数
+	 */
+	int deleteAll(Specification<T> spec);
+
+	/**
+	 * 用 JDBC 批处理按 id 修改同一个属性: UPDATE table SET column = ? WHERE id = ?
+	 * 适合每条记录的新值都不一样的情况, 对应实体的二级缓存和查询缓存会失效, 有 @Version 时版本号加一
+	 * @param valuesById id 到新值的映射
+	 * @return 修改的记录数
+	 */
+	int updateInBatch(String attribute, Map<ID, ?> valuesById);
+
+	/**
+	 * 插入或修改, 只需要一次数据库往返, 代替 save 对已有 id 的实体先 SELECT 再 UPDATE 的 merge:
+	 * INSERT INTO table (...) VALUES (...) ON DUPLICATE KEY UPDATE column = VALUES(column), ...
+	 * 使用的是 MySQL 的语法(H2 的 MySQL 兼容模式也支持)
+	 * 没有 id 的实体会先用实体上配置的生成器生成 id(不支持 IDENTITY)
+	 * 传入的实体不会变成持久化状态; 持久化上下文中已有的对应实体会被刷新, 二级缓存和查询缓存会失效
+	 * 有 @Version 时修改的记录版本号加一, 但不检查版本号, 即后写入的覆盖先写入的
+	 * @param updateAttributes 主键冲突时要修改的属性, 为空时修改所有的列
+	 * @return MySQL 返回的影响行数: 插入的记录算 1, 修改的记录算 2, 值没有变化的算 0
+	 */
+	int upsert(T entity, String... updateAttributes);
+
+	/**
+	 * 与 upsert 相同, 但每 50 条实体拼成一条多行的 INSERT ... VALUES (...), (...) ON DUPLICATE KEY UPDATE 语句
+	 */
+	int upsertAll(Iterable<? extends T> entities, String... updateAttributes);
+
+	/**
+	 * 投影查询: 只查询需要的列, 返回的不是实体, 不会放入持久化上下文, 也没有用于脏检查的快照
+	 * projectionType 是接口时, 按其中 getter 对应的属性查询, 返回该接口的动态代理(见 InterfaceProjection)
+	 * projectionType 是类(DTO)时, 按 attributes 的顺序查询, 调用参数与之对应的构造器, 相当于 SELECT new ...
+	 * @param attributes 要查询的属性, 可以是 address.city 这样的级联属性; projectionType 是接口时可以省略
+	 */
+	<P> List<P> findAll(Specification<T> spec, Class<P> projectionType, String... attributes);
+
+	/**
+	 * 以只读方式查询实体: 实体仍然在持久化上下文中, 但不保存用于脏检查的快照, flush 时也不检查它们
+	 * 对返回的实体所做的修改不会被保存
+	 */
+	List<T> findAllReadOnly(Specification<T> spec);
+
 }
@@ -1,18 +1,100 @@
 package com.atguigu.springdata.commonrepositorymethod;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.Parameter;
+import javax.persistence.PersistenceException;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.xml.bind.DatatypeConverter;
 
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.ejb.QueryHints;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.Assigned;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PostInsertIdentifierGenerator;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.query.QueryUtils;
+import org.springframework.data.jpa.repository.support.JpaEntityInformation;
+import org.springframework.data.jpa.repository.support.JpaEntityInformationSupport;
 import org.springframework.data.jpa.repository.support.SimpleJpaRepository;
 import org.springframework.data.repository.NoRepositoryBean;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
+
+import com.atguigu.springdata.datasource.ShardContext;
 
 @NoRepositoryBean
 public class CommonMethodTestImpl<T, ID extends Serializable> 
 	extends SimpleJpaRepository<T, ID> implements CommonMethodTest<T, ID> {
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// JDBC 批处理每批的语句数, 与 hibernate.jdbc.batch_size 保持一致
+	private static final int JDBC_BATCH_SIZE = 50;
+
+	// 分区扫描时每一页的记录数, 以及读取线程和调用者线程之间的队列的容量
+	private static final int SCAN_PAGE_SIZE = 1000;
+	private static final int SCAN_QUEUE_CAPACITY = 1000;
+
+	// 放入扫描队列, 表示一个分区读完了
+	private static final Object END_OF_PARTITION = new Object();
+
+	private final JpaEntityInformation<T, ?> entityInformation;
+	private final EntityManager entityManager;
+	// 编译好的 CriteriaQuery 只能在创建它的 EntityManagerFactory 上使用, 作为 CompiledQueryCache 的 key 的一部分
+	private final EntityManagerFactory entityManagerFactory;
+	private final ConversionService conversionService = new DefaultConversionService();
+	private final CountQueryCache countQueryCache;
+	private final CompiledQueryCache compiledQueryCache = CompiledQueryCache.getInstance();
+
 	public CommonMethodTestImpl(Class<T> domainClass, EntityManager em) {
 		super(domainClass, em);
+		this.entityInformation = JpaEntityInformationSupport.getMetadata(domainClass, em);
+		this.entityManager = em;
+		this.entityManagerFactory = em.getEntityManagerFactory();
+		this.countQueryCache = CountQueryCache.forDomainType(domainClass);
 	}
 
 	@Override
@@ -20,4 +102,814 @@ public class CommonMethodTestImpl<T, ID extends Serializable>
 		System.out.println("...METHOD TEST...");
 	}
 
+	/**
+	 * 有 @Version 的实体, id 由生成器生成时, 有 id 但 version 为 null 的实体会被 Hibernate 当作新的实体,
+	 * merge 时用新的 id 再 INSERT 一条, 而不是修改 id 对应的记录; 这种情况直接报错.
+	 * 修改已有的记录需要先查询出来, 或者同时设置 id 和 version
+	 * (saveAndFlush 和 save(Iterable) 都会调用这个方法)
+	 */
+	@Transactional
+	@Override
+	public <S extends T> S save(S entity) {
+		checkVersion(entity);
+		return super.save(entity);
+	}
+
+	/*
+	 * 以下几个 Specification 查询方法在 spec 是 ParameterizedSpecification 时使用缓存的 JPQL(见 createQuery),
+	 * 其他情况与 SimpleJpaRepository 相同
+	 */
+	@Override
+	public T findOne(Specification<T> spec) {
+		if (!(spec instanceof ParameterizedSpecification)) {
+			return super.findOne(spec);
+		}
+		try {
+			return createQuery(spec, null).getSingleResult();
+		} catch (NoResultException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public List<T> findAll(Specification<T> spec) {
+		if (!(spec instanceof ParameterizedSpecification)) {
+			return super.findAll(spec);
+		}
+		return createQuery(spec, null).getResultList();
+	}
+
+	@Override
+	public List<T> findAll(Specification<T> spec, Sort sort) {
+		if (!(spec instanceof ParameterizedSpecification)) {
+			return super.findAll(spec, sort);
+		}
+		return createQuery(spec, sort).getResultList();
+	}
+
+	@Override
+	public Page<T> findAll(Specification<T> spec, Pageable pageable) {
+		if (!(spec instanceof ParameterizedSpecification)) {
+			return super.findAll(spec, pageable);
+		}
+		if (pageable == null) {
+			return new PageImpl<T>(createQuery(spec, null).getResultList());
+		}
+		long total = createCountQuery(spec).getSingleResult();
+		List<T> content = Collections.<T> emptyList();
+		if (total > pageable.getOffset()) {
+			TypedQuery<T> query = createQuery(spec, pageable.getSort());
+			query.setFirstResult(pageable.getOffset());
+			query.setMaxResults(pageable.getPageSize());
+			content = query.getResultList();
+		}
+		return new PageImpl<T>(content, pageable, total);
+	}
+
+	@Override
+	public long count(Specification<T> spec) {
+		if (!(spec instanceof ParameterizedSpecification)) {
+			return super.count(spec);
+		}
+		return createCountQuery(spec).getSingleResult();
+	}
+
+	@Override
+	public List<T> findAll(Iterable<ID> ids) {
+		if (ids == null) {
+			return new ArrayList<T>();
+		}
+		List<T> results = new ArrayList<T>();
+		for (List<ID> chunk : InListChunker.chunk(ids)) {
+			results.addAll(createFindByIdsQuery(entityManager, chunk).getResultList());
+		}
+		return sortByIds(results, ids);
+	}
+
+	@Override
+	public List<T> findAll(Iterable<ID> ids, ExecutorService executor) {
+		if (ids == null) {
+			return new ArrayList<T>();
+		}
+		List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+		for (final List<ID> chunk : InListChunker.chunk(ids)) {
+			// 分库时在调用者选择的分片上查询
+			futures.add(executor.submit(ShardContext.propagate(new Callable<List<T>>() {
+				@Override
+				public List<T> call() {
+					EntityManager em = entityManagerFactory.createEntityManager();
+					try {
+						return createFindByIdsQuery(em, chunk).getResultList();
+					} finally {
+						em.close();
+					}
+				}
+			})));
+		}
+
+		List<T> results = new ArrayList<T>();
+		try {
+			for (Future<List<T>> future : futures) {
+				results.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading entities by ids", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			for (Future<List<T>> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return sortByIds(results, ids);
+	}
+
+	// 扫描可能持续很久, 调用者的线程只负责处理, 不需要占用一个连接
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	@Override
+	@SuppressWarnings("unchecked")
+	public long scanPartitioned(final Specification<T> spec, int partitions, ExecutorService executor,
+			EntityCallback<T> callback) {
+		Assert.isTrue(partitions > 0, "partitions must be greater than 0");
+		Assert.isTrue(Number.class.isAssignableFrom(entityInformation.getIdType()), "Partitioned scan requires a numeric id");
+
+		long[] range = findIdRange(entityManagerFactory, spec);
+		if (range == null) {
+			return 0;
+		}
+
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(SCAN_QUEUE_CAPACITY);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long processed = 0;
+		int finished = 0;
+		try {
+			// 提交也在 try 中: 线程池拒绝后面的分区时, 已经提交的分区同样会被取消
+			long step = (range[1] - range[0]) / partitions + 1;
+			for (long from = range[0]; from <= range[1]; from += step) {
+				final long lower = from;
+				final long upper = Math.min(from + step - 1, range[1]);
+				futures.add(executor.submit(ShardContext.propagate(new Runnable() {
+					@Override
+					public void run() {
+						scanRange(entityManagerFactory, spec, lower, upper, queue);
+					}
+				})));
+			}
+
+			while (finished < futures.size()) {
+				Object item = queue.take();
+				if (item == END_OF_PARTITION) {
+					finished++;
+				} else if (item instanceof ScanFailure) {
+					Throwable failure = ((ScanFailure) item).exception;
+					if (failure instanceof Error) {
+						throw (Error) failure;
+					}
+					throw (RuntimeException) failure;
+				} else {
+					callback.process((T) item);
+					processed++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while scanning " + entityInformation.getEntityName(), e);
+		} finally {
+			// 正常结束时什么也不做; 出错时中断还在等待队列的读取线程
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return processed;
+	}
+
+	/**
+	 * 在单独的 EntityManager 和只读事务中按 id 顺序分页读取 [lower, upper] 范围内的记录, 每读一页清空一次持久化上下文
+	 * 不管在哪一步出错(包括创建 EntityManager 时连不上数据库), 都会向队列放入 END_OF_PARTITION 或 ScanFailure,
+	 * 调用者不会一直等待; 只有被中断时不放入, 这时调用者已经不再读取队列了
+	 */
+	private void scanRange(EntityManagerFactory entityManagerFactory, Specification<T> spec, long lower, long upper,
+			BlockingQueue<Object> queue) {
+		EntityManager em = null;
+		try {
+			em = entityManagerFactory.createEntityManager();
+			em.unwrap(Session.class).setDefaultReadOnly(true);
+			em.getTransaction().begin();
+			try {
+				TypedQuery<T> query = createRangeQuery(em, spec);
+				query.setParameter("scanUpper", conversionService.convert(upper, entityInformation.getIdType()));
+				Object after = conversionService.convert(lower - 1, entityInformation.getIdType());
+				while (true) {
+					List<T> page = query.setParameter("scanAfter", after).getResultList();
+					for (T entity : page) {
+						queue.put(entity);
+					}
+					if (page.size() < SCAN_PAGE_SIZE) {
+						break;
+					}
+					after = entityInformation.getId(page.get(page.size() - 1));
+					em.clear();
+				}
+			} finally {
+				em.getTransaction().rollback();
+			}
+			queue.put(END_OF_PARTITION);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException | Error e) {
+			// Error(例如 OutOfMemoryError) 也要通知调用者, 否则调用者会一直等待这个分区结束
+			try {
+				queue.put(new ScanFailure(e));
+			} catch (InterruptedException interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			if (em != null) {
+				em.close();
+			}
+		}
+	}
+
+	// WHERE spec AND id > :scanAfter AND id <= :scanUpper ORDER BY id, 用参数代替字面量, 每一页的 SQL 都相同
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private TypedQuery<T> createRangeQuery(EntityManager em, Specification<T> spec) {
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<T> query = builder.createQuery(getJavaType());
+		Root<T> root = applySpecification(spec, query, builder);
+		Path<Comparable> idPath = root.get(getIdAttributeName());
+		Class<Comparable> idType = (Class<Comparable>) entityInformation.getIdType();
+		ParameterExpression<Comparable> after = builder.parameter(idType, "scanAfter");
+		ParameterExpression<Comparable> upper = builder.parameter(idType, "scanUpper");
+
+		Predicate range = builder.and(builder.greaterThan(idPath, after), builder.lessThanOrEqualTo(idPath, upper));
+		query.where(query.getRestriction() == null ? range : builder.and(query.getRestriction(), range));
+		query.select(root).orderBy(builder.asc(idPath));
+
+		TypedQuery<T> typedQuery = em.createQuery(query).setMaxResults(SCAN_PAGE_SIZE);
+		return spec instanceof ParameterizedSpecification ? bindParameters(typedQuery, spec) : typedQuery;
+	}
+
+	// 满足条件的记录的最小和最大 id, 没有记录时返回 null
+	private long[] findIdRange(EntityManagerFactory entityManagerFactory, Specification<T> spec) {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			CriteriaBuilder builder = em.getCriteriaBuilder();
+			CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+			Root<T> root = applySpecification(spec, query, builder);
+			Path<Number> idPath = root.get(getIdAttributeName());
+			query.multiselect(builder.min(idPath), builder.max(idPath));
+
+			TypedQuery<Object[]> typedQuery = em.createQuery(query);
+			if (spec instanceof ParameterizedSpecification) {
+				bindParameters(typedQuery, spec);
+			}
+			Object[] range = typedQuery.getSingleResult();
+			if (range[0] == null) {
+				return null;
+			}
+			return new long[] { ((Number) range[0]).longValue(), ((Number) range[1]).longValue() };
+		} finally {
+			em.close();
+		}
+	}
+
+	private static class ScanFailure {
+		private final Throwable exception;
+
+		ScanFailure(Throwable exception) {
+			this.exception = exception;
+		}
+	}
+
+	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public KeysetSlice<T> findSlice(Specification<T> spec, String continuationToken, int size) {
+		Assert.isTrue(size > 0, "size must be greater than 0");
+
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<T> query = builder.createQuery(getJavaType());
+		Root<T> root = applySpecification(spec, query, builder);
+		Path<Comparable> idPath = root.get(getIdAttributeName());
+
+		if (continuationToken != null) {
+			Predicate after = builder.greaterThan(idPath, decodeToken(continuationToken));
+			query.where(query.getRestriction() == null ? after : builder.and(query.getRestriction(), after));
+		}
+		query.select(root).orderBy(builder.asc(idPath));
+
+		// 多查一条用来判断是否还有下一页, 这样就不需要 count 查询了
+		List<T> content = entityManager.createQuery(query).setMaxResults(size + 1).getResultList();
+		if (content.size() <= size) {
+			return new KeysetSlice<T>(content, null);
+		}
+		content = new ArrayList<T>(content.subList(0, size));
+		return new KeysetSlice<T>(content, encodeToken(entityInformation.getId(content.get(size - 1))));
+	}
+
+	@Override
+	public OffsetSlice<T> findSlice(Specification<T> spec, Pageable pageable) {
+		TypedQuery<T> query = createQuery(spec, pageable.getSort());
+		query.setFirstResult(pageable.getOffset());
+		query.setMaxResults(pageable.getPageSize() + 1);
+
+		List<T> content = query.getResultList();
+		boolean hasNext = content.size() > pageable.getPageSize();
+		if (hasNext) {
+			content = new ArrayList<T>(content.subList(0, pageable.getPageSize()));
+		}
+		return new OffsetSlice<T>(content, pageable, hasNext);
+	}
+
+	@Override
+	public Page<T> findAllWithCachedCount(Specification<T> spec, Pageable pageable) {
+		TypedQuery<T> query = createQuery(spec, pageable.getSort());
+		query.setFirstResult(pageable.getOffset());
+		query.setMaxResults(pageable.getPageSize());
+
+		List<T> content = query.getResultList();
+		return new PageImpl<T>(content, pageable, cachedCount(spec));
+	}
+
+	@Transactional
+	@Override
+	public int updateAll(Specification<T> spec, Map<String, ?> values) {
+		Assert.notEmpty(values, "values must not be empty");
+		List<ID> ids = findIds(spec);
+		if (ids.isEmpty()) {
+			return 0;
+		}
+
+		// 属性名会拼接到 JPQL 中, 先通过元模型校验一下
+		StringBuilder jpql = new StringBuilder("UPDATE ").append(entityInformation.getEntityName()).append(" x SET ");
+		List<Object> parameters = new ArrayList<Object>();
+		for (Map.Entry<String, ?> entry : values.entrySet()) {
+			entityManager.getMetamodel().entity(getJavaType()).getAttribute(entry.getKey());
+			if (!parameters.isEmpty()) {
+				jpql.append(", ");
+			}
+			parameters.add(entry.getValue());
+			jpql.append("x.").append(entry.getKey()).append(" = ?").append(parameters.size());
+		}
+		// JPQL 的 UPDATE 不会修改 @Version 的版本号, 需要手动加一
+		String versionAttribute = getVersionAttributeName();
+		if (versionAttribute != null) {
+			jpql.append(", x.").append(versionAttribute).append(" = x.").append(versionAttribute).append(" + 1");
+		}
+		jpql.append(" WHERE x.").append(getIdAttributeName()).append(" IN (?").append(parameters.size() + 1).append(")");
+
+		int updated = 0;
+		for (List<ID> chunk : InListChunker.chunk(ids)) {
+			javax.persistence.Query query = entityManager.createQuery(jpql.toString());
+			for (int i = 0; i < parameters.size(); i++) {
+				query.setParameter(i + 1, parameters.get(i));
+			}
+			query.setParameter(parameters.size() + 1, chunk);
+			updated += query.executeUpdate();
+		}
+		// JPQL 的批量修改不会更新一级缓存中的实体, 需要手动刷新
+		refreshManaged(ids);
+		return updated;
+	}
+
+	@Transactional
+	@Override
+	public int deleteAll(Specification<T> spec) {
+		List<ID> ids = findIds(spec);
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		detachManaged(ids);
+
+		String jpql = "DELETE FROM " + entityInformation.getEntityName() + " x WHERE x." + getIdAttributeName() + " IN (?1)";
+		int deleted = 0;
+		for (List<ID> chunk : InListChunker.chunk(ids)) {
+			deleted += entityManager.createQuery(jpql).setParameter(1, chunk).executeUpdate();
+		}
+		return deleted;
+	}
+
+	@Transactional
+	@Override
+	public int updateInBatch(String attribute, final Map<ID, ?> valuesById) {
+		if (valuesById.isEmpty()) {
+			return 0;
+		}
+		// 先把持久化上下文中未提交的修改发给数据库, 避免之后被覆盖
+		entityManager.flush();
+
+		final SessionImplementor session = getSessionImplementor();
+		AbstractEntityPersister persister = getEntityPersister(session);
+		String[] columns = persister.getPropertyColumnNames(attribute);
+		Assert.isTrue(columns.length == 1, "Attribute " + attribute + " must be mapped to exactly one column");
+		final Type type = persister.getPropertyType(attribute);
+		final Type idType = persister.getIdentifierType();
+		String versionUpdate = persister.isVersioned()
+				? ", " + persister.getVersionColumnName() + " = " + persister.getVersionColumnName() + " + 1" : "";
+		final String sql = "UPDATE " + persister.getTableName() + " SET " + columns[0] + " = ?" + versionUpdate
+				+ " WHERE " + persister.getIdentifierColumnNames()[0] + " = ?";
+
+		int updated = ((Session) session).doReturningWork(new ReturningWork<Integer>() {
+			@Override
+			public Integer execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(sql);
+				try {
+					int updated = 0;
+					int pending = 0;
+					for (Map.Entry<ID, ?> entry : valuesById.entrySet()) {
+						type.nullSafeSet(statement, entry.getValue(), 1, session);
+						idType.nullSafeSet(statement, entry.getKey(), 2, session);
+						statement.addBatch();
+						if (++pending == JDBC_BATCH_SIZE) {
+							updated += sum(statement.executeBatch());
+							pending = 0;
+						}
+					}
+					if (pending > 0) {
+						updated += sum(statement.executeBatch());
+					}
+					return updated;
+				} finally {
+					statement.close();
+				}
+			}
+		});
+
+		// 绕过了 Hibernate, 需要自己让二级缓存、查询缓存失效, 并刷新一级缓存
+		for (ID id : valuesById.keySet()) {
+			session.getFactory().getCache().evictEntity(getJavaType(), id);
+		}
+		session.getFactory().getCache().evictDefaultQueryRegion();
+		refreshManaged(valuesById.keySet());
+		return updated;
+	}
+
+	@Override
+	public <P> List<P> findAll(Specification<T> spec, Class<P> projectionType, String... attributes) {
+		Assert.notNull(projectionType, "projectionType must not be null");
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+
+		if (projectionType.isInterface()) {
+			InterfaceProjection<P> projection = new InterfaceProjection<P>(projectionType, attributes);
+			CriteriaQuery<Tuple> query = builder.createTupleQuery();
+			Root<T> root = applySpecification(spec, query, builder);
+			query.multiselect(getSelections(root, projection.getProperties()));
+
+			List<Tuple> tuples = entityManager.createQuery(query).getResultList();
+			List<P> results = new ArrayList<P>(tuples.size());
+			for (Tuple tuple : tuples) {
+				results.add(projection.create(tuple.toArray()));
+			}
+			return results;
+		}
+
+		Assert.notEmpty(attributes, "attributes are required for class based projection " + projectionType.getName());
+		CriteriaQuery<P> query = builder.createQuery(projectionType);
+		Root<T> root = applySpecification(spec, query, builder);
+		query.select(builder.construct(projectionType, getSelections(root, attributes)));
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	@Override
+	public List<T> findAllReadOnly(Specification<T> spec) {
+		return createQuery(spec, null).setHint(QueryHints.HINT_READONLY, true).getResultList();
+	}
+
+	private Selection<?>[] getSelections(Root<T> root, String[] attributes) {
+		Selection<?>[] selections = new Selection<?>[attributes.length];
+		for (int i = 0; i < attributes.length; i++) {
+			Path<?> path = root;
+			for (String name : attributes[i].split("\\.")) {
+				path = path.get(name);
+			}
+			selections[i] = path;
+		}
+		return selections;
+	}
+
+	@Transactional
+	@Override
+	public int upsert(T entity, String... updateAttributes) {
+		Assert.notNull(entity, "entity must not be null");
+		return upsertAll(Collections.singletonList(entity), updateAttributes);
+	}
+
+	@Transactional
+	@Override
+	public int upsertAll(Iterable<? extends T> entities, String... updateAttributes) {
+		final List<T> rows = new ArrayList<T>();
+		for (T entity : entities) {
+			rows.add(entity);
+		}
+		if (rows.isEmpty()) {
+			return 0;
+		}
+		// 先把持久化上下文中未提交的修改发给数据库, 避免之后被覆盖
+		entityManager.flush();
+
+		final SessionImplementor session = getSessionImplementor();
+		AbstractEntityPersister persister = getEntityPersister(session);
+		final UpsertStatement upsert = new UpsertStatement(persister, updateAttributes);
+		final List<Serializable> ids = new ArrayList<Serializable>(rows.size());
+		for (T entity : rows) {
+			ids.add(getOrGenerateId(entity, persister, session));
+		}
+
+		int updated = ((Session) session).doReturningWork(new ReturningWork<Integer>() {
+			@Override
+			public Integer execute(Connection connection) throws SQLException {
+				// 除了最后一段, 每段都是 JDBC_BATCH_SIZE 行, 共用同一条语句
+				PreparedStatement full = null;
+				try {
+					int updated = 0;
+					for (int from = 0; from < rows.size(); from += JDBC_BATCH_SIZE) {
+						int to = Math.min(from + JDBC_BATCH_SIZE, rows.size());
+						boolean isFull = to - from == JDBC_BATCH_SIZE;
+						if (isFull && full == null) {
+							full = connection.prepareStatement(upsert.getSql(JDBC_BATCH_SIZE));
+						}
+						PreparedStatement statement = isFull ? full : connection.prepareStatement(upsert.getSql(to - from));
+						try {
+							int index = 1;
+							for (int i = from; i < to; i++) {
+								index = upsert.bind(statement, rows.get(i), ids.get(i), index, session);
+							}
+							updated += statement.executeUpdate();
+						} finally {
+							if (statement != full) {
+								statement.close();
+							}
+						}
+					}
+					return updated;
+				} finally {
+					if (full != null) {
+						full.close();
+					}
+				}
+			}
+		});
+
+		// 绕过了 Hibernate, 需要自己让二级缓存、查询缓存失效, 并刷新一级缓存
+		for (Serializable id : ids) {
+			session.getFactory().getCache().evictEntity(getJavaType(), id);
+		}
+		session.getFactory().getCache().evictDefaultQueryRegion();
+		refreshManaged(ids);
+		return updated;
+	}
+
+	// 没有 id 时用实体上配置的生成器生成, 并设置到实体上
+	private Serializable getOrGenerateId(T entity, AbstractEntityPersister persister, SessionImplementor session) {
+		Serializable id = persister.getIdentifier(entity, session);
+		if (id == null) {
+			IdentifierGenerator generator = persister.getIdentifierGenerator();
+			Assert.isTrue(!(generator instanceof PostInsertIdentifierGenerator),
+					"Upsert requires an id or a pre-insert id generator: " + persister.getEntityName());
+			id = generator.generate(session, entity);
+			persister.setIdentifier(entity, id, session);
+		}
+		return id;
+	}
+
+	private long cachedCount(Specification<T> spec) {
+		TypedQuery<Long> countQuery = createCountQuery(spec);
+		String key = countCacheKey(countQuery);
+		if (key == null) {
+			return countQuery.getSingleResult();
+		}
+		Long count = countQueryCache.get(key);
+		if (count == null) {
+			long generation = countQueryCache.currentGeneration();
+			count = countQuery.getSingleResult();
+			countQueryCache.put(key, count, generation);
+		}
+		return count;
+	}
+
+	/**
+	 * 把 count 查询规范化为缓存的 key: Hibernate 渲染出的 JPQL 加上所有参数的值
+	 * Hibernate 会把字符串等字面量渲染成隐式参数, 这些参数的值拿不到, 此时返回 null, 不使用缓存
+	 * 分库时同一条 count 查询在每个分片上的结果不同, key 中加上当前的分片(见 ShardingPostProcessor)
+	 */
+	private String countCacheKey(TypedQuery<Long> countQuery) {
+		Query hibernateQuery;
+		try {
+			hibernateQuery = countQuery.unwrap(Query.class);
+		} catch (PersistenceException e) {
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder(hibernateQuery.getQueryString());
+		Set<String> unbound = new HashSet<String>(Arrays.asList(hibernateQuery.getNamedParameters()));
+		for (Parameter<?> parameter : countQuery.getParameters()) {
+			if (parameter.getName() == null) {
+				return null;
+			}
+			unbound.remove(parameter.getName());
+			key.append('|').append(parameter.getName()).append('=').append(countQuery.getParameterValue(parameter));
+		}
+		Integer shard = ShardContext.get();
+		if (shard != null) {
+			key.append("|shard=").append(shard);
+		}
+		return unbound.isEmpty() ? key.toString() : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<ID> findIds(Specification<T> spec) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<ID> query = builder.createQuery((Class<ID>) entityInformation.getIdType());
+		Root<T> root = applySpecification(spec, query, builder);
+		query.select(root.<ID> get(getIdAttributeName()));
+		return entityManager.createQuery(query).getResultList();
+	}
+
+	// 刷新持久化上下文中已经存在的实体, 不在其中的不会被加载
+	private void refreshManaged(Collection<?> ids) {
+		for (Object entity : findManaged(ids)) {
+			entityManager.refresh(entity);
+		}
+	}
+
+	private void detachManaged(Collection<?> ids) {
+		for (Object entity : findManaged(ids)) {
+			entityManager.detach(entity);
+		}
+	}
+
+	private List<Object> findManaged(Collection<?> ids) {
+		SessionImplementor session = getSessionImplementor();
+		AbstractEntityPersister persister = getEntityPersister(session);
+		List<Object> managed = new ArrayList<Object>();
+		for (Object id : ids) {
+			Object entity = session.getPersistenceContext().getEntity(session.generateEntityKey((Serializable) id, persister));
+			if (entity != null) {
+				managed.add(entity);
+			}
+		}
+		return managed;
+	}
+
+	private SessionImplementor getSessionImplementor() {
+		return (SessionImplementor) entityManager.unwrap(Session.class);
+	}
+
+	private AbstractEntityPersister getEntityPersister(SessionImplementor session) {
+		return (AbstractEntityPersister) session.getFactory().getEntityPersister(getJavaType().getName());
+	}
+
+	private void checkVersion(T entity) {
+		Object id = entityInformation.getId(entity);
+		if (id == null) {
+			return;
+		}
+		AbstractEntityPersister persister = getEntityPersister(getSessionImplementor());
+		if (persister.isVersioned() && !(persister.getIdentifierGenerator() instanceof Assigned)
+				&& persister.getVersion(entity) == null) {
+			throw new IllegalArgumentException(entityInformation.getEntityName() + " with id " + id
+					+ " has no version and would be inserted as a new row, load it first or set its version");
+		}
+	}
+
+	private String getIdAttributeName() {
+		return entityInformation.getIdAttribute().getName();
+	}
+
+	// @Version 属性的名字, 没有时返回 null
+	private String getVersionAttributeName() {
+		AbstractEntityPersister persister = getEntityPersister(getSessionImplementor());
+		return persister.isVersioned() ? persister.getPropertyNames()[persister.getVersionProperty()] : null;
+	}
+
+	// IN 列表的长度已经补齐过, 相同长度的查询生成的 SQL 相同
+	private TypedQuery<T> createFindByIdsQuery(EntityManager em, List<ID> ids) {
+		String jpql = "SELECT x FROM " + entityInformation.getEntityName() + " x WHERE x." + getIdAttributeName() + " IN (?1)";
+		return em.createQuery(jpql, getJavaType()).setParameter(1, ids);
+	}
+
+	// 按调用方传入的 id 的顺序排列结果
+	private List<T> sortByIds(List<T> entities, Iterable<ID> ids) {
+		Map<Object, T> entitiesById = new HashMap<Object, T>();
+		for (T entity : entities) {
+			entitiesById.put(entityInformation.getId(entity), entity);
+		}
+		List<T> sorted = new ArrayList<T>(entitiesById.size());
+		for (ID id : ids) {
+			T entity = entitiesById.remove(id);
+			if (entity != null) {
+				sorted.add(entity);
+			}
+		}
+		return sorted;
+	}
+
+	// 开启 rewriteBatchedStatements 时驱动可能返回 SUCCESS_NO_INFO, 这时按修改了一条计算
+	private static int sum(int[] counts) {
+		int sum = 0;
+		for (int count : counts) {
+			sum += count >= 0 ? count : 1;
+		}
+		return sum;
+	}
+
+	private TypedQuery<T> createQuery(Specification<T> spec, Sort sort) {
+		String key = compiledQueryKey(spec, "select", sort);
+		String jpql = key == null ? null : compiledQueryCache.get(entityManagerFactory, key);
+		if (jpql != null) {
+			return bindParameters(entityManager.createQuery(jpql, getJavaType()), spec);
+		}
+
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<T> query = builder.createQuery(getJavaType());
+		Root<T> root = applySpecification(spec, query, builder);
+		query.select(root);
+		if (sort != null) {
+			query.orderBy(QueryUtils.toOrders(sort, root, builder));
+		}
+		return compile(key, query, getJavaType(), spec);
+	}
+
+	private TypedQuery<Long> createCountQuery(Specification<T> spec) {
+		String key = compiledQueryKey(spec, "count", null);
+		String jpql = key == null ? null : compiledQueryCache.get(entityManagerFactory, key);
+		if (jpql != null) {
+			return bindParameters(entityManager.createQuery(jpql, Long.class), spec);
+		}
+
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<T> root = applySpecification(spec, query, builder);
+		query.select(query.isDistinct() ? builder.countDistinct(root) : builder.count(root));
+		return compile(key, query, Long.class, spec);
+	}
+
+	// 只有声明了 getFingerprint() 的 ParameterizedSpecification 的查询可以缓存, 其他的返回 null
+	private String compiledQueryKey(Specification<T> spec, String kind, Sort sort) {
+		if (!(spec instanceof ParameterizedSpecification)) {
+			return null;
+		}
+		String fingerprint = ((ParameterizedSpecification<T>) spec).getFingerprint();
+		if (fingerprint == null) {
+			return null;
+		}
+		return getJavaType().getName() + '|' + kind + '|' + fingerprint + '|' + sort;
+	}
+
+	/**
+	 * 创建查询, key 不为 null 时把渲染出的 JPQL 放入 CompiledQueryCache, 并用这个 JPQL 创建查询
+	 * 查询中直接写了值或者有未命名的参数时不缓存(见 CriteriaQueryRenderer), 否则之后的查询都会使用这一次的值
+	 */
+	private <R> TypedQuery<R> compile(String key, CriteriaQuery<R> criteriaQuery, Class<R> resultType,
+			Specification<T> spec) {
+		String jpql = null;
+		if (key != null) {
+			jpql = CriteriaQueryRenderer.renderCacheable(criteriaQuery, getSessionImplementor().getFactory());
+			if (jpql != null) {
+				compiledQueryCache.put(entityManagerFactory, key, jpql);
+			} else {
+				compiledQueryCache.recordUncacheable();
+			}
+		}
+		TypedQuery<R> query = jpql != null ? entityManager.createQuery(jpql, resultType)
+				: entityManager.createQuery(criteriaQuery);
+		return spec instanceof ParameterizedSpecification ? bindParameters(query, spec) : query;
+	}
+
+	private <R> TypedQuery<R> bindParameters(TypedQuery<R> query, Specification<T> spec) {
+		for (Map.Entry<String, Object> entry : ((ParameterizedSpecification<T>) spec).getParameters().entrySet()) {
+			query.setParameter(entry.getKey(), entry.getValue());
+		}
+		return query;
+	}
+
+	private <S> Root<T> applySpecification(Specification<T> spec, CriteriaQuery<S> query, CriteriaBuilder builder) {
+		Root<T> root = query.from(getJavaType());
+		if (spec != null) {
+			Predicate predicate = spec.toPredicate(root, query, builder);
+			if (predicate != null) {
+				query.where(predicate);
+			}
+		}
+		return root;
+	}
+
+	private Class<T> getJavaType() {
+		return entityInformation.getJavaType();
+	}
+
+	// 令牌只是 id 的 Base64 编码, 对调用方来说是不透明的
+	private String encodeToken(Object id) {
+		return DatatypeConverter.printBase64Binary(id.toString().getBytes(UTF_8));
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Comparable decodeToken(String continuationToken) {
+		String id = new String(DatatypeConverter.parseBase64Binary(continuationToken), UTF_8);
+		return (Comparable) conversionService.convert(id, entityInformation.getIdType());
+	}
+
 }
@@ -0,0 +1,170 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * ParameterizedSpecification 渲染出的 JPQL 的缓存, 按最近最少使用淘汰(渲染见 CriteriaQueryRenderer)
+ * key 由 EntityManagerFactory、实体类型、查询的种类、Specification 的 getFingerprint() 和排序组成
+ * 同一个 JVM 中有多个 EntityManagerFactory(多个容器、分库、测试)时按 EntityManagerFactory 分开缓存,
+ * 实体名等映射信息可能不同; 已经关闭的 EntityManagerFactory 的条目不会再命中, 之后按最近最少使用淘汰
+ *
+ * 命中时不再调用 toPredicate 构建条件, 也不经过 Hibernate 的 CriteriaQueryCompiler 渲染,
+ * 直接用 createQuery(String) 创建查询, Hibernate 的 QueryPlanCache 会使用已经解析好的查询计划, 只需要绑定参数
+ *
+ * 在 applicationContext.xml 中注册为 bean 后通过 JMX 查看大小和命中率
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=CompiledQueryCache")
+public class CompiledQueryCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 500;
+
+	private static final CompiledQueryCache INSTANCE = new CompiledQueryCache();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong uncacheable = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private final Map<Key, String> entries = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+			if (size() > maxEntries) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	public static CompiledQueryCache getInstance() {
+		return INSTANCE;
+	}
+
+	public String get(EntityManagerFactory entityManagerFactory, String key) {
+		String jpql;
+		synchronized (entries) {
+			jpql = entries.get(new Key(entityManagerFactory, key));
+		}
+		if (jpql == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return jpql;
+	}
+
+	/**
+	 * @param jpql 参数使用 ParameterizedSpecification 中声明的名字, 命中后按名字绑定参数值
+	 */
+	public void put(EntityManagerFactory entityManagerFactory, String key, String jpql) {
+		synchronized (entries) {
+			entries.put(new Key(entityManagerFactory, key), jpql);
+		}
+	}
+
+	/**
+	 * 记录一次无法缓存的查询, 例如 toPredicate 中直接写了值(见 CriteriaQueryRenderer)
+	 */
+	public void recordUncacheable() {
+		uncacheable.incrementAndGet();
+	}
+
+	@ManagedAttribute(description = "缓存的查询数量")
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@ManagedAttribute(description = "最多缓存的查询数量")
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	@ManagedAttribute
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	@ManagedAttribute(description = "命中次数")
+	public long getHits() {
+		return hits.get();
+	}
+
+	@ManagedAttribute(description = "未命中次数")
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@ManagedAttribute(description = "无法缓存的次数")
+	public long getUncacheable() {
+		return uncacheable.get();
+	}
+
+	@ManagedAttribute(description = "被淘汰的次数")
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@ManagedAttribute(description = "命中率")
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@ManagedOperation(description = "清空缓存和统计信息")
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+		uncacheable.set(0);
+		evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledQueryCache [size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", uncacheable=" + getUncacheable() + ", evictions=" + getEvictions() + ", hitRatio="
+				+ String.format("%.2f", getHitRatio()) + "]";
+	}
+
+	// EntityManagerFactory 按同一性比较, 它的 equals 没有重写
+	private static final class Key {
+		private final EntityManagerFactory entityManagerFactory;
+		private final String query;
+
+		Key(EntityManagerFactory entityManagerFactory, String query) {
+			this.entityManagerFactory = entityManagerFactory;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return entityManagerFactory == other.entityManagerFactory && query.equals(other.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(entityManagerFactory) + query.hashCode();
+		}
+	}
+}
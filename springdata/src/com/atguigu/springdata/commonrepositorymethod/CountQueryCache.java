@@ -0,0 +1,115 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按实体类型划分的 count 查询结果缓存, 带 TTL
+ * 通过 Repository 对该实体类型执行 save / delete / @Modifying 操作时整个失效
+ */
+public class CountQueryCache {
+
+	public static final long DEFAULT_TTL_MILLIS = 30 * 1000;
+
+	// 超过这个数量时先清理过期的条目, 仍然超过就全部清空
+	private static final int MAX_ENTRIES = 1000;
+
+	private static final ConcurrentMap<Class<?>, CountQueryCache> CACHES = new ConcurrentHashMap<Class<?>, CountQueryCache>();
+
+	private static volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// 每次失效加一, 用来丢弃失效之前开始、失效之后才写回的 count
+	private final AtomicLong generation = new AtomicLong();
+
+	public static CountQueryCache forDomainType(Class<?> domainType) {
+		CountQueryCache cache = CACHES.get(domainType);
+		if (cache == null) {
+			CountQueryCache created = new CountQueryCache();
+			cache = CACHES.putIfAbsent(domainType, created);
+			if (cache == null) {
+				cache = created;
+			}
+		}
+		return cache;
+	}
+
+	public static void invalidate(Class<?> domainType) {
+		CountQueryCache cache = CACHES.get(domainType);
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	public static void setTtlMillis(long ttlMillis) {
+		CountQueryCache.ttlMillis = ttlMillis;
+	}
+
+	public long currentGeneration() {
+		return generation.get();
+	}
+
+	public Long get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(System.currentTimeMillis())) {
+			entries.remove(key, entry);
+			return null;
+		}
+		return entry.count;
+	}
+
+	/**
+	 * @param generation 执行 count 查询之前调用 currentGeneration() 得到的值
+	 */
+	public void put(String key, long count, long generation) {
+		if (entries.size() >= MAX_ENTRIES) {
+			evictExpired();
+		}
+		entries.put(key, new Entry(count, System.currentTimeMillis() + ttlMillis));
+		// 查询期间发生了失效, 刚放进去的值可能已经过时了
+		if (this.generation.get() != generation) {
+			entries.remove(key);
+		}
+	}
+
+	public void clear() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+		if (entries.size() >= MAX_ENTRIES) {
+			entries.clear();
+		}
+	}
+
+	private static class Entry {
+		private final long count;
+		private final long expiresAt;
+
+		Entry(long count, long expiresAt) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+}
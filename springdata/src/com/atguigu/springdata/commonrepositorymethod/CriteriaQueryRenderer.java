@@ -0,0 +1,155 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+
+import org.hibernate.ejb.criteria.CriteriaBuilderImpl;
+import org.hibernate.ejb.criteria.CriteriaQueryCompiler;
+import org.hibernate.ejb.criteria.CriteriaQueryImpl;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.type.Type;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * 把 CriteriaQuery 渲染为 JPQL 字符串, 供 CompiledQueryCache 缓存; 之后直接用 createQuery(String) 创建查询,
+ * 不再经过 Hibernate 的 CriteriaQueryCompiler(每次都会重新渲染), 相同的字符串还能命中 QueryPlanCache
+ *
+ * 只有所有的值都是命名参数时才能缓存, 以下情况返回 null:
+ * 1. 查询中直接写了值: 字符串等会被 Hibernate 渲染成隐式参数, 数字会直接写在 JPQL 中(例如 cb.gt(path, 5)),
+ *    两种情况都会把第一次的值固定在缓存的 JPQL 中, 通过遍历查询中的表达式找出 LiteralExpression
+ * 2. 参数没有名字, 或者名字不能作为 JPQL 的参数名
+ * 显式参数在 JPQL 中使用声明时的名字(Hibernate 自己渲染时会改名为 param0, param1...), 之后按名字绑定参数值
+ */
+class CriteriaQueryRenderer {
+
+	private static final String CRITERIA_PACKAGE = "org.hibernate.ejb.criteria.";
+	private static final String LITERAL_EXPRESSION = "org.hibernate.ejb.criteria.expression.LiteralExpression";
+	private static final Pattern PARAMETER_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+	private CriteriaQueryRenderer() {
+	}
+
+	/**
+	 * 渲染为 JPQL, 不能缓存时返回 null
+	 */
+	static String renderCacheable(CriteriaQuery<?> query, SessionFactoryImplementor factory) {
+		if (!(query instanceof CriteriaQueryImpl) || containsLiteral(query)) {
+			return null;
+		}
+		Context context = new Context(factory);
+		String jpql = ((CriteriaQueryImpl<?>) query).compile(context).getQueryString();
+		return context.cacheable ? jpql : null;
+	}
+
+	private static boolean containsLiteral(Object query) {
+		return containsLiteral(query, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+	}
+
+	/**
+	 * 遍历 Hibernate 的查询对象(QueryStructure、表达式、谓词、排序、子查询等)的字段,
+	 * 不进入 CriteriaBuilderImpl 和元模型, 它们引用了整个 EntityManagerFactory
+	 */
+	private static boolean containsLiteral(Object node, final Set<Object> visited) {
+		if (node == null || !visited.add(node)) {
+			return false;
+		}
+		if (node instanceof Collection) {
+			for (Object element : (Collection<?>) node) {
+				if (containsLiteral(element, visited)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (node instanceof Map) {
+			return containsLiteral(((Map<?, ?>) node).values(), visited);
+		}
+		if (node instanceof Object[]) {
+			for (Object element : (Object[]) node) {
+				if (containsLiteral(element, visited)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (!isCriteriaNode(node.getClass())) {
+			return false;
+		}
+		for (Class<?> type = node.getClass(); type != Object.class; type = type.getSuperclass()) {
+			if (type.getName().equals(LITERAL_EXPRESSION)) {
+				return true;
+			}
+		}
+		for (Class<?> type = node.getClass(); type != Object.class; type = type.getSuperclass()) {
+			for (Field field : type.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+					continue;
+				}
+				ReflectionUtils.makeAccessible(field);
+				if (containsLiteral(ReflectionUtils.getField(field, node), visited)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isCriteriaNode(Class<?> type) {
+		return type.getName().startsWith(CRITERIA_PACKAGE) && !CriteriaBuilderImpl.class.isAssignableFrom(type);
+	}
+
+	// 与 Hibernate 的 RenderingContext 相同, 只是显式参数保留声明时的名字, 并记录是否出现了隐式参数
+	private static class Context implements CriteriaQueryCompiler.RenderingContext {
+
+		private final SessionFactoryImplementor factory;
+		private int aliasCount;
+		private int literalCount;
+		boolean cacheable = true;
+
+		Context(SessionFactoryImplementor factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public String generateAlias() {
+			return "generatedAlias" + aliasCount++;
+		}
+
+		@Override
+		public String registerExplicitParameter(ParameterExpression<?> parameter) {
+			String name = parameter.getName();
+			if (name == null || !PARAMETER_NAME.matcher(name).matches()) {
+				cacheable = false;
+				return "unnamed" + literalCount++;
+			}
+			return name;
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public String registerLiteralParameterBinding(Object literal, Class javaType) {
+			cacheable = false;
+			return "literal" + literalCount++;
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public String getCastType(Class javaType) {
+			Type type = factory.getTypeResolver().heuristicType(javaType.getName());
+			if (type == null) {
+				throw new IllegalArgumentException("Could not convert java type [" + javaType.getName()
+						+ "] to Hibernate type");
+			}
+			return type.getName();
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+/**
+ * 逐行处理查询结果的回调, 用于游标方式遍历大结果集, 避免一次性把结果全部加载到 List 中
+ */
+public interface EntityCallback<T> {
+
+	void process(T entity);
+
+}
@@ -0,0 +1,44 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.springframework.data.jpa.domain.Specification;
+
+/**
+ * 为 Specification 声明抓取策略: 用 LEFT JOIN FETCH 把关联对象和主对象一起查出来, 避免 N+1 查询
+ * 分页时 findAll(spec, pageable) 还会用同一个 Specification 执行 count 查询,
+ * count 查询中不能有 fetch join, 所以只在结果类型不是 Long 时才添加
+ */
+public abstract class FetchSpecifications {
+
+	/**
+	 * @param spec 原来的查询条件, 可以为 null
+	 * @param paths 要抓取的关联属性, 级联属性用 . 连接, 例如 "address"
+	 */
+	public static <T> Specification<T> fetch(final Specification<T> spec, final String... paths) {
+		return new Specification<T>() {
+			@Override
+			public Predicate toPredicate(Root<T> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+				if (!isCountQuery(query)) {
+					for (String path : paths) {
+						FetchParent<?, ?> parent = root;
+						for (String attribute : path.split("\\.")) {
+							parent = parent.fetch(attribute, JoinType.LEFT);
+						}
+					}
+				}
+				return spec == null ? null : spec.toPredicate(root, query, cb);
+			}
+		};
+	}
+
+	private static boolean isCountQuery(CriteriaQuery<?> query) {
+		return Long.class.equals(query.getResultType()) || long.class.equals(query.getResultType());
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.enhanced.TableGenerator;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * 启动时检查使用 TABLE 生成器(@TableGenerator, 见 Person)的实体: 表中已有数据, 而生成器的值还不够大时,
+ * 把生成器的值改为 MAX(id) + allocationSize, 否则新生成的 id 会和已有的记录冲突
+ * (例如原来用 AUTO 生成 id 的表改用 TABLE 生成器, 生成器的行不存在, Hibernate 会从 initialValue 开始分配)
+ *
+ * 1. pooled 优化器每次从表中读到值 V 后分配 (V - allocationSize, V] 范围内的 id, 所以值至少要是 MAX(id) + allocationSize
+ * 2. 生成器的行不存在时插入; 存在时用 UPDATE ... WHERE value < ? 只把值改大,
+ *    正常运行时值总是不小于 MAX(id) + allocationSize, 不会被修改, 多个实例同时启动也不会把值改小
+ * 3. 实体的表是空的时不做任何事, 交给 Hibernate 按 initialValue 初始化
+ * 4. 多个实体共用同一个生成器的行时, 依次检查后值不小于其中最大的 MAX(id) + allocationSize
+ *
+ * 需要在 EntityManagerFactory 之后初始化(hbm2ddl 已经建好了表), 并且在第一次保存实体之前, 所以实现 InitializingBean
+ */
+public class IdGeneratorInitializer implements InitializingBean {
+
+	private static final Log LOG = LogFactory.getLog(IdGeneratorInitializer.class);
+
+	private EntityManagerFactory entityManagerFactory;
+	private DataSource dataSource;
+
+	public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		Assert.notNull(entityManagerFactory, "entityManagerFactory is required");
+		Assert.notNull(dataSource, "dataSource is required");
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+				((HibernateEntityManagerFactory) entityManagerFactory).getSessionFactory();
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		for (ClassMetadata metadata : sessionFactory.getAllClassMetadata().values()) {
+			EntityPersister persister = sessionFactory.getEntityPersister(metadata.getEntityName());
+			if (persister instanceof AbstractEntityPersister
+					&& persister.getIdentifierGenerator() instanceof TableGenerator) {
+				initialize(jdbcTemplate, (AbstractEntityPersister) persister,
+						(TableGenerator) persister.getIdentifierGenerator());
+			}
+		}
+	}
+
+	private void initialize(JdbcTemplate jdbcTemplate, AbstractEntityPersister persister, TableGenerator generator) {
+		Long maxId = jdbcTemplate.queryForObject("SELECT MAX(" + persister.getIdentifierColumnNames()[0] + ") FROM "
+				+ persister.getTableName(), Long.class);
+		if (maxId == null) {
+			return;
+		}
+		long value = maxId + generator.getIncrementSize();
+		String where = " WHERE " + generator.getSegmentColumnName() + " = ?";
+		int rows = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + generator.getTableName() + where,
+				Integer.class, generator.getSegmentValue());
+		int changed;
+		if (rows == 0) {
+			changed = jdbcTemplate.update("INSERT INTO " + generator.getTableName() + " ("
+					+ generator.getSegmentColumnName() + ", " + generator.getValueColumnName() + ") VALUES (?, ?)",
+					generator.getSegmentValue(), value);
+		} else {
+			changed = jdbcTemplate.update("UPDATE " + generator.getTableName() + " SET "
+					+ generator.getValueColumnName() + " = ?" + where + " AND " + generator.getValueColumnName() + " < ?",
+					value, generator.getSegmentValue(), value);
+		}
+		if (changed > 0 && LOG.isInfoEnabled()) {
+			LOG.info("Initialized id generator " + generator.getSegmentValue() + " of " + persister.getEntityName()
+					+ " to " + value + " (MAX(id) = " + maxId + ")");
+		}
+	}
+}
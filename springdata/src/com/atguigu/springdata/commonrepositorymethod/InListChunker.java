@@ -0,0 +1,67 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 把很长的 IN 列表拆分成固定大小的若干段
+ * 每段的长度都补齐到 1, 2, 4 ... MAX_BUCKET_SIZE 中的一个, 不足的部分用最后一个值填充,
+ * 这样生成的 SQL 只有少数几种, 可以重用数据库和连接池中缓存的 PreparedStatement, 也不会超过 max_allowed_packet
+ */
+public abstract class InListChunker {
+
+	public static final int MAX_BUCKET_SIZE = 512;
+
+	/**
+	 * 去掉重复值后按 MAX_BUCKET_SIZE 拆分, 并补齐每一段的长度
+	 */
+	public static <E> List<List<E>> chunk(Iterable<E> values) {
+		return chunk(values, MAX_BUCKET_SIZE);
+	}
+
+	/**
+	 * @param maxBucketSize 每段的最大长度, 必须是 2 的幂
+	 */
+	public static <E> List<List<E>> chunk(Iterable<E> values, int maxBucketSize) {
+		if (maxBucketSize <= 0 || Integer.bitCount(maxBucketSize) != 1) {
+			throw new IllegalArgumentException("maxBucketSize must be a power of two");
+		}
+		List<E> distinct = new ArrayList<E>(toSet(values));
+		if (distinct.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<List<E>> chunks = new ArrayList<List<E>>();
+		for (int i = 0; i < distinct.size(); i += maxBucketSize) {
+			List<E> chunk = new ArrayList<E>(distinct.subList(i, Math.min(i + maxBucketSize, distinct.size())));
+			E padding = chunk.get(chunk.size() - 1);
+			for (int size = bucketSize(chunk.size()); chunk.size() < size;) {
+				chunk.add(padding);
+			}
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * 不小于 size 的最小的 2 的幂
+	 */
+	public static int bucketSize(int size) {
+		return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+	}
+
+	private static <E> LinkedHashSet<E> toSet(Iterable<E> values) {
+		if (values instanceof Collection) {
+			return new LinkedHashSet<E>((Collection<E>) values);
+		}
+		LinkedHashSet<E> set = new LinkedHashSet<E>();
+		for (E value : values) {
+			set.add(value);
+		}
+		return set;
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.Assert;
+
+/**
+ * 接口投影: 由只包含 getter 的接口声明需要查询的属性, 查询结果包装成该接口的动态代理
+ * 例如 PersonContact 的 getLastName() 和 getEmail() 对应 Person 的 lastName 和 email 两列
+ */
+class InterfaceProjection<P> {
+
+	private final Class<P> projectionType;
+	private final String[] properties;
+	private final Map<Method, Integer> indexes = new HashMap<Method, Integer>();
+
+	InterfaceProjection(Class<P> projectionType, String... properties) {
+		Assert.isTrue(projectionType.isInterface(), projectionType + " is not an interface");
+		this.projectionType = projectionType;
+
+		List<String> names = new ArrayList<String>();
+		for (PropertyDescriptor descriptor : BeanUtils.getPropertyDescriptors(projectionType)) {
+			if (descriptor.getReadMethod() != null) {
+				indexes.put(descriptor.getReadMethod(), names.size());
+				names.add(descriptor.getName());
+			}
+		}
+		// 指定了属性时按指定的顺序查询, 否则查询接口中所有的属性
+		if (properties.length > 0) {
+			Assert.isTrue(names.containsAll(Arrays.asList(properties)), "Unknown properties " + Arrays.toString(properties)
+					+ " for " + projectionType.getName());
+			for (Map.Entry<Method, Integer> entry : indexes.entrySet()) {
+				entry.setValue(Arrays.asList(properties).indexOf(names.get(entry.getValue())));
+			}
+			this.properties = properties;
+		} else {
+			this.properties = names.toArray(new String[names.size()]);
+		}
+	}
+
+	String[] getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @param values 按 getProperties() 的顺序排列的属性值
+	 */
+	P create(final Object[] values) {
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				Integer index = indexes.get(method);
+				if (index != null) {
+					return index < 0 ? null : values[index];
+				}
+				if (method.getName().equals("toString") && method.getParameterTypes().length == 0) {
+					return projectionType.getSimpleName() + asMap();
+				}
+				if (method.getName().equals("hashCode") && method.getParameterTypes().length == 0) {
+					return System.identityHashCode(proxy);
+				}
+				if (method.getName().equals("equals") && method.getParameterTypes().length == 1) {
+					return proxy == args[0];
+				}
+				throw new UnsupportedOperationException(method.toString());
+			}
+
+			private Map<String, Object> asMap() {
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for (int i = 0; i < properties.length; i++) {
+					map.put(properties[i], values[i]);
+				}
+				return map;
+			}
+		};
+		return projectionType.cast(Proxy.newProxyInstance(projectionType.getClassLoader(),
+				new Class<?>[] { projectionType }, handler));
+	}
+}
@@ -0,0 +1,49 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 键集(seek)分页的一页数据
+ * 不包含总记录数, 通过 continuationToken 获取下一页
+ */
+public class KeysetSlice<T> implements Iterable<T> {
+
+	private final List<T> content;
+	private final String continuationToken;
+
+	public KeysetSlice(List<T> content, String continuationToken) {
+		this.content = Collections.unmodifiableList(content);
+		this.continuationToken = continuationToken;
+	}
+
+	public List<T> getContent() {
+		return content;
+	}
+
+	public int getNumberOfElements() {
+		return content.size();
+	}
+
+	public boolean hasNext() {
+		return continuationToken != null;
+	}
+
+	/**
+	 * 查询下一页时传入的令牌, 没有下一页时为 null
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return content.iterator();
+	}
+
+	@Override
+	public String toString() {
+		return "KeysetSlice [content=" + content + ", continuationToken=" + continuationToken + "]";
+	}
+}
@@ -0,0 +1,68 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Method;
+
+import org.springframework.data.repository.core.NamedQueries;
+import org.springframework.data.repository.core.RepositoryMetadata;
+import org.springframework.data.repository.query.QueryLookupStrategy;
+import org.springframework.data.repository.query.QueryMethod;
+import org.springframework.data.repository.query.RepositoryQuery;
+
+/**
+ * 创建 Repository 时不创建查询, 第一次调用查询方法时才创建
+ *
+ * 默认情况下创建 Repository 时会为每个查询方法创建查询: 解析方法名并构建 CriteriaQuery, 或者解析 @Query 的 JPQL 来验证它,
+ * 方法越多启动越慢. 延迟创建后启动时不再做这些工作, 但方法名或 JPQL 写错时要到第一次调用才会报错
+ */
+class LazyQueryLookupStrategy implements QueryLookupStrategy {
+
+	private final QueryLookupStrategy delegate;
+
+	LazyQueryLookupStrategy(QueryLookupStrategy delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public RepositoryQuery resolveQuery(Method method, RepositoryMetadata metadata, NamedQueries namedQueries) {
+		return new LazyRepositoryQuery(method, metadata, namedQueries);
+	}
+
+	private class LazyRepositoryQuery implements RepositoryQuery {
+
+		private final Method method;
+		private final RepositoryMetadata metadata;
+		private final NamedQueries namedQueries;
+
+		private volatile RepositoryQuery query;
+
+		LazyRepositoryQuery(Method method, RepositoryMetadata metadata, NamedQueries namedQueries) {
+			this.method = method;
+			this.metadata = metadata;
+			this.namedQueries = namedQueries;
+		}
+
+		@Override
+		public Object execute(Object[] parameters) {
+			return getQuery().execute(parameters);
+		}
+
+		@Override
+		public QueryMethod getQueryMethod() {
+			return getQuery().getQueryMethod();
+		}
+
+		private RepositoryQuery getQuery() {
+			RepositoryQuery query = this.query;
+			if (query == null) {
+				synchronized (this) {
+					query = this.query;
+					if (query == null) {
+						query = delegate.resolveQuery(method, metadata, namedQueries);
+						this.query = query;
+					}
+				}
+			}
+			return query;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标注在 Repository 的查询方法上, 把查询结果缓存在应用的内存中(见 NearCachePostProcessor)
+ * 用于 getByLastName 这类按非 id 的属性查询单个实体的方法, 二级缓存只能按 id 命中, 帮不上忙
+ *
+ * 通过 Repository 对该实体类型执行 save / delete / update / @Modifying 操作时整个失效,
+ * 不经过 Repository 的修改(例如直接修改托管实体, 由脏检查更新)不会让缓存失效, 只能等到过期
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NearCache {
+
+	/**
+	 * 最多缓存的条目数, 超过后淘汰最近最少使用的
+	 */
+	int maxEntries() default 1000;
+
+	/**
+	 * 查询结果的过期时间
+	 */
+	long ttlMillis() default 60 * 1000;
+
+	/**
+	 * 查询结果为 null 时的过期时间, 0 表示不缓存 null
+	 */
+	long negativeTtlMillis() default 5 * 1000;
+}
@@ -0,0 +1,122 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * 按实体类型管理一个容器中所有的 NearCacheRegion, 由 CacheInvalidationPostProcessor 在写操作之后让对应的缓存失效
+ * 每个 ApplicationContext 一个, 由 CommonJpaRepositoryFactoryBean 从容器中获取, 容器中没有时会自动注册一个;
+ * 同一个 JVM 中的多个容器互不影响, 一个容器中的写操作只让它自己的缓存失效
+ * 在 applicationContext.xml 中注册为 bean 后通过 JMX 查看命中率
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=NearCache")
+public class NearCacheManager {
+
+	private final ConcurrentMap<Class<?>, List<NearCacheRegion>> regions =
+			new ConcurrentHashMap<Class<?>, List<NearCacheRegion>>();
+
+	// 按方法查找, 重载的方法(参数不同)各自使用自己的缓存
+	private final ConcurrentMap<Method, NearCacheRegion> regionsByMethod =
+			new ConcurrentHashMap<Method, NearCacheRegion>();
+
+	/**
+	 * 返回方法对应的缓存, 没有时创建; 同一个容器中多个 Repository 代理同一个接口时共用一个缓存
+	 */
+	public NearCacheRegion getOrCreateRegion(Class<?> domainType, Method method, NearCache nearCache) {
+		NearCacheRegion region = regionsByMethod.get(method);
+		if (region != null) {
+			return region;
+		}
+		NearCacheRegion created = new NearCacheRegion(regionName(method), nearCache);
+		region = regionsByMethod.putIfAbsent(method, created);
+		if (region != null) {
+			return region;
+		}
+		List<NearCacheRegion> list = regions.get(domainType);
+		if (list == null) {
+			List<NearCacheRegion> createdList = new CopyOnWriteArrayList<NearCacheRegion>();
+			list = regions.putIfAbsent(domainType, createdList);
+			if (list == null) {
+				list = createdList;
+			}
+		}
+		list.add(created);
+		return created;
+	}
+
+	// 例如 PersonRepository.getByLastName(String), 带上参数类型区分重载的方法
+	private static String regionName(Method method) {
+		StringBuilder name = new StringBuilder(method.getDeclaringClass().getSimpleName())
+				.append('.').append(method.getName()).append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0) {
+				name.append(", ");
+			}
+			name.append(parameterTypes[i].getSimpleName());
+		}
+		return name.append(')').toString();
+	}
+
+	public void invalidate(Class<?> domainType) {
+		List<NearCacheRegion> list = regions.get(domainType);
+		if (list != null) {
+			for (NearCacheRegion region : list) {
+				region.invalidate();
+			}
+		}
+	}
+
+	@ManagedAttribute(description = "所有缓存的总命中率")
+	public double getHitRatio() {
+		long hits = 0;
+		long total = 0;
+		for (List<NearCacheRegion> list : regions.values()) {
+			for (NearCacheRegion region : list) {
+				long regionHits = region.getHits() + region.getNegativeHits();
+				hits += regionHits;
+				total += regionHits + region.getMisses();
+			}
+		}
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@ManagedAttribute(description = "每个缓存的大小和命中情况")
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (List<NearCacheRegion> list : regions.values()) {
+			for (NearCacheRegion region : list) {
+				report.append(region).append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	@ManagedOperation(description = "清空所有缓存")
+	public void invalidateAll() {
+		for (Class<?> domainType : regions.keySet()) {
+			invalidate(domainType);
+		}
+	}
+
+	@ManagedOperation(description = "清空统计信息")
+	public void resetStatistics() {
+		for (List<NearCacheRegion> list : regions.values()) {
+			for (NearCacheRegion region : list) {
+				region.resetStatistics();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "NearCacheManager [hitRatio=" + String.format("%.2f", getHitRatio()) + "]\n" + getReport();
+	}
+}
@@ -0,0 +1,135 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.persistence.Entity;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.data.repository.core.RepositoryInformation;
+import org.springframework.data.repository.core.support.RepositoryProxyPostProcessor;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
+
+import com.atguigu.springdata.datasource.ReadWriteRoutingDataSource;
+
+/**
+ * 为 Repository 代理添加拦截器: 标注了 @NearCache 的方法先从 NearCacheRegion 中获取结果
+ *
+ * 注意:
+ * 1. 缓存的实体是脱管的, 每次返回的都是它的浅拷贝(List 中的实体同样), 调用者修改返回的实体不会影响缓存和其他调用者;
+ *    浅拷贝和缓存中的实体共用关联的对象(例如 Person 的 address), 懒加载的关联也不能再访问
+ * 2. 在读写事务中调用时不使用缓存, 保证事务中查到的是托管的实体, 修改后能被脏检查更新
+ * 3. 读写分离时, 刚写入过数据的线程在粘滞期内读取主库(见 ReadWriteRoutingDataSource), 这时既不读取也不保存缓存:
+ *    缓存中的结果来自从库, 可能还没有刚写入的数据; 主库查到的结果也不能缓存, 否则其他线程会读到从库还没有的数据
+ */
+public class NearCachePostProcessor implements RepositoryProxyPostProcessor {
+
+	private final NearCacheManager nearCacheManager;
+	private final ReadWriteRoutingDataSource readWriteRoutingDataSource;
+
+	public NearCachePostProcessor(NearCacheManager nearCacheManager) {
+		this(nearCacheManager, null);
+	}
+
+	/**
+	 * @param readWriteRoutingDataSource 没有读写分离时为 null
+	 */
+	public NearCachePostProcessor(NearCacheManager nearCacheManager,
+			ReadWriteRoutingDataSource readWriteRoutingDataSource) {
+		this.nearCacheManager = nearCacheManager;
+		this.readWriteRoutingDataSource = readWriteRoutingDataSource;
+	}
+
+	@Override
+	public void postProcess(ProxyFactory factory, RepositoryInformation repositoryInformation) {
+		Class<?> repositoryInterface = repositoryInformation.getRepositoryInterface();
+		Map<Method, NearCacheRegion> regions = new HashMap<Method, NearCacheRegion>();
+		for (Method method : repositoryInterface.getMethods()) {
+			NearCache nearCache = AnnotationUtils.findAnnotation(method, NearCache.class);
+			if (nearCache != null) {
+				regions.put(method, nearCacheManager.getOrCreateRegion(
+						repositoryInformation.getDomainType(), method, nearCache));
+			}
+		}
+		if (!regions.isEmpty()) {
+			factory.addAdvice(new NearCacheInterceptor(regions, readWriteRoutingDataSource));
+		}
+	}
+
+	private static class NearCacheInterceptor implements MethodInterceptor {
+
+		private final Map<Method, NearCacheRegion> regions;
+		private final ReadWriteRoutingDataSource readWriteRoutingDataSource;
+
+		NearCacheInterceptor(Map<Method, NearCacheRegion> regions,
+				ReadWriteRoutingDataSource readWriteRoutingDataSource) {
+			this.regions = regions;
+			this.readWriteRoutingDataSource = readWriteRoutingDataSource;
+		}
+
+		@Override
+		public Object invoke(final MethodInvocation invocation) throws Throwable {
+			NearCacheRegion region = regions.get(invocation.getMethod());
+			if (region == null || isReadWriteTransaction() || isStickyToPrimary()) {
+				return invocation.proceed();
+			}
+			return copy(region.get(Arrays.asList(invocation.getArguments()), new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					try {
+						return invocation.proceed();
+					} catch (Exception e) {
+						throw e;
+					} catch (Error e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new UndeclaredThrowableException(e);
+					}
+				}
+			}));
+		}
+
+		private static boolean isReadWriteTransaction() {
+			return TransactionSynchronizationManager.isActualTransactionActive()
+					&& !TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+		}
+
+		private boolean isStickyToPrimary() {
+			return readWriteRoutingDataSource != null && readWriteRoutingDataSource.isStickyToPrimary();
+		}
+
+		// 实体复制一份再返回, 集合中的实体逐个复制; 其他类型(String、数字等)原样返回
+		private static Object copy(Object value) {
+			if (value instanceof List) {
+				List<Object> copies = new ArrayList<Object>(((Collection<?>) value).size());
+				for (Object element : (Collection<?>) value) {
+					copies.add(copy(element));
+				}
+				return copies;
+			}
+			if (value == null) {
+				return null;
+			}
+			// Hibernate 的代理类是实体类的子类
+			Class<?> type = ClassUtils.getUserClass(value);
+			if (AnnotationUtils.findAnnotation(type, Entity.class) == null) {
+				return value;
+			}
+			Object copy = BeanUtils.instantiateClass(type);
+			BeanUtils.copyProperties(value, copy);
+			return copy;
+		}
+	}
+}
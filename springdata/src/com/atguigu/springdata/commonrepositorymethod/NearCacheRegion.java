@@ -0,0 +1,223 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个标注了 @NearCache 的 Repository 方法的缓存, key 是方法的参数
+ *
+ * 1. 按最近最少使用淘汰, 每个条目有各自的过期时间, 结果为 null 的条目使用较短的过期时间
+ * 2. 同一个 key 同时只有一个线程执行查询, 其他线程等待它的结果, 避免缓存过期的瞬间大量请求同时访问数据库
+ * 3. 和 CountQueryCache 一样用 generation 丢弃失效之前开始、失效之后才写回的结果
+ */
+public class NearCacheRegion {
+
+	// 区分 "缓存了 null" 和 "没有缓存"
+	private static final Object NULL = new Object();
+
+	private final String name;
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+
+	private final Map<Object, CacheEntry> entries;
+	private final ConcurrentMap<Object, FutureTask<Object>> loading = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public NearCacheRegion(String name, NearCache nearCache) {
+		this(name, nearCache.maxEntries(), nearCache.ttlMillis(), nearCache.negativeTtlMillis());
+	}
+
+	public NearCacheRegion(String name, final int maxEntries, long ttlMillis, long negativeTtlMillis) {
+		this.name = name;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.entries = new LinkedHashMap<Object, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, CacheEntry> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * 从缓存中获取 key 对应的结果, 没有或已过期时调用 loader 查询
+	 */
+	public Object get(Object key, Callable<Object> loader) throws Exception {
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null) {
+				if (!entry.isExpired(now)) {
+					if (entry.value == NULL) {
+						negativeHits.incrementAndGet();
+						return null;
+					}
+					hits.incrementAndGet();
+					return entry.value;
+				}
+				entries.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+
+		FutureTask<Object> task = new FutureTask<Object>(loader);
+		FutureTask<Object> existing = loading.putIfAbsent(key, task);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return await(existing);
+		}
+		long generation = this.generation.get();
+		try {
+			loads.incrementAndGet();
+			task.run();
+			Object value = await(task);
+			put(key, value, generation);
+			return value;
+		} finally {
+			loading.remove(key, task);
+		}
+	}
+
+	private void put(Object key, Object value, long generation) {
+		long ttl = value == null ? negativeTtlMillis : ttlMillis;
+		if (ttl <= 0) {
+			return;
+		}
+		synchronized (entries) {
+			// 查询期间发生了失效, 查到的值可能已经过时了
+			if (this.generation.get() != generation) {
+				return;
+			}
+			entries.put(key, new CacheEntry(value == null ? NULL : value, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	private static Object await(FutureTask<Object> task) throws Exception {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	public void invalidate() {
+		synchronized (entries) {
+			generation.incrementAndGet();
+			entries.clear();
+		}
+		invalidations.incrementAndGet();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * 等待其他线程正在执行的查询、自己没有访问数据库的次数
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public double getHitRatio() {
+		long hits = getHits() + getNegativeHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		negativeHits.set(0);
+		misses.set(0);
+		loads.set(0);
+		coalesced.set(0);
+		evictions.set(0);
+		invalidations.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return name + " [size=" + getSize() + ", hits=" + getHits() + ", negativeHits=" + getNegativeHits()
+				+ ", misses=" + getMisses() + ", loads=" + getLoads() + ", coalesced=" + getCoalesced()
+				+ ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + ", hitRatio="
+				+ String.format("%.2f", getHitRatio()) + "]";
+	}
+
+	private static class CacheEntry {
+		private final Object value;
+		private final long expiresAt;
+
+		CacheEntry(Object value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+
+/**
+ * 按 offset 分页但不执行 count 查询的一页数据
+ * 只知道是否还有下一页, 不知道总记录数和总页数
+ */
+public class OffsetSlice<T> implements Iterable<T> {
+
+	private final List<T> content;
+	private final Pageable pageable;
+	private final boolean hasNext;
+
+	public OffsetSlice(List<T> content, Pageable pageable, boolean hasNext) {
+		this.content = Collections.unmodifiableList(content);
+		this.pageable = pageable;
+		this.hasNext = hasNext;
+	}
+
+	public List<T> getContent() {
+		return content;
+	}
+
+	public int getNumber() {
+		return pageable.getPageNumber();
+	}
+
+	public int getSize() {
+		return pageable.getPageSize();
+	}
+
+	public int getNumberOfElements() {
+		return content.size();
+	}
+
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	public Pageable getPageable() {
+		return pageable;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return content.iterator();
+	}
+
+	@Override
+	public String toString() {
+		return "OffsetSlice [number=" + getNumber() + ", content=" + content + ", hasNext=" + hasNext + "]";
+	}
+}
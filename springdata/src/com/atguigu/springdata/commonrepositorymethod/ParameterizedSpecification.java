@@ -0,0 +1,60 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.ParameterExpression;
+
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.util.Assert;
+
+/**
+ * 查询结构固定、只有参数值变化的 Specification, 渲染出的 JPQL 可以被 CompiledQueryCache 缓存
+ * 通过 CommonMethodTest 的 Repository 执行 findAll / findOne / count 等方法时, 第二次起不再调用 toPredicate,
+ * 直接用缓存的 JPQL 创建查询, 再绑定 bind() 传入的参数值, Hibernate 也会复用已经解析好的查询计划
+ *
+ * 使用时需要遵守的约定:
+ * 1. 覆盖 getFingerprint() 才会缓存, 它的返回值代表查询的结构(有哪些条件、怎样连接);
+ *    结构随参数变化时(例如值为 null 时不加这个条件), 为每种结构返回不同的值
+ * 2. 条件中的值都要通过 parameter() 声明为命名参数, 不能直接写在 toPredicate 中(例如 cb.gt(path, 5));
+ *    直接写了值的查询不会被缓存(见 CriteriaQueryRenderer), 每次都重新构建
+ * 3. 参数值保存在实例中, 每次查询创建一个新的实例
+ *
+ * 例如:
+ * new ParameterizedSpecification<Person>() {
+ *     public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+ *         return cb.gt(root.<Integer>get("id"), parameter(cb, Integer.class, "minId"));
+ *     }
+ *     public String getFingerprint() {
+ *         return "Person.idGreaterThan";
+ *     }
+ * }.bind("minId", 5)
+ */
+public abstract class ParameterizedSpecification<T> implements Specification<T> {
+
+	private final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+
+	public ParameterizedSpecification<T> bind(String name, Object value) {
+		Assert.hasText(name, "name must not be empty");
+		parameters.put(name, value);
+		return this;
+	}
+
+	public Map<String, Object> getParameters() {
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	/**
+	 * 查询结构的标识, 作为 CompiledQueryCache 的 key 的一部分; 默认为 null, 不缓存
+	 * 不能默认用类名: 同一个类的 toPredicate 可能按参数值构建出不同结构的查询
+	 */
+	public String getFingerprint() {
+		return null;
+	}
+
+	protected <P> ParameterExpression<P> parameter(CriteriaBuilder cb, Class<P> type, String name) {
+		return cb.parameter(type, name);
+	}
+}
@@ -0,0 +1,126 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.SimpleBeanDefinitionRegistry;
+import org.springframework.context.annotation.AnnotationBeanNameGenerator;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.data.repository.NoRepositoryBean;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.RepositoryDefinition;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * 构建时执行一次: 扫描类路径, 把 context:component-scan 和 jpa:repositories 找到的 bean 写成显式声明的 XML,
+ * fast profile 使用生成的文件, 启动时不再扫描类路径(见 applicationContext.xml)
+ *
+ * 生成的 Repository 设置了 lazyQueries, 第一次调用查询方法时才创建查询
+ * 新增或删除 Service、Repository 之后需要重新执行, 参数: [扫描的包] [输出的文件]
+ */
+public class RepositoryDefinitionsGenerator {
+
+	public static final String DEFAULT_BASE_PACKAGE = "com.atguigu.springdata";
+	public static final String DEFAULT_OUTPUT = "src/applicationContext-fast.xml";
+
+	// Spring Data 按这个后缀查找 Repository 的自定义实现
+	private static final String IMPLEMENTATION_POSTFIX = "Impl";
+
+	public static void main(String[] args) throws IOException {
+		String basePackage = args.length > 0 ? args[0] : DEFAULT_BASE_PACKAGE;
+		String output = args.length > 1 ? args[1] : DEFAULT_OUTPUT;
+		String xml = generate(basePackage);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(output)), "UTF-8");
+		try {
+			writer.write(xml);
+		} finally {
+			writer.close();
+		}
+		System.out.println("Generated " + output);
+	}
+
+	public static String generate(String basePackage) {
+		BeanDefinitionRegistry registry = new SimpleBeanDefinitionRegistry();
+		AnnotationBeanNameGenerator nameGenerator = new AnnotationBeanNameGenerator();
+
+		// 和 context:component-scan 相同: @Component, @Service 等
+		Map<String, String> components = new TreeMap<String, String>();
+		for (BeanDefinition definition : new ClassPathScanningCandidateComponentProvider(true)
+				.findCandidateComponents(basePackage)) {
+			components.put(nameGenerator.generateBeanName(definition, registry), definition.getBeanClassName());
+		}
+
+		// 和 jpa:repositories 相同: 继承了 Repository 或标注了 @RepositoryDefinition 的接口, 排除 @NoRepositoryBean
+		// bean 的名字是首字母小写的接口名
+		Map<String, String> repositories = new TreeMap<String, String>();
+		for (BeanDefinition definition : createRepositoryScanner().findCandidateComponents(basePackage)) {
+			String beanClassName = definition.getBeanClassName();
+			repositories.put(StringUtils.uncapitalize(ClassUtils.getShortName(beanClassName)), beanClassName);
+		}
+
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<beans xmlns=\"http://www.springframework.org/schema/beans\"\n");
+		xml.append("       xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n");
+		xml.append("       xmlns:context=\"http://www.springframework.org/schema/context\"\n");
+		xml.append("       xsi:schemaLocation=\"http://www.springframework.org/schema/beans http://www.springframework.org/schema/beans/spring-beans.xsd http://www.springframework.org/schema/context http://www.springframework.org/schema/context/spring-context.xsd\">\n");
+		xml.append("\n");
+		xml.append("    <!-- 由 RepositoryDefinitionsGenerator 生成, 不要手动修改 -->\n");
+		xml.append("    <!-- 代替 context:component-scan 和 jpa:repositories, 启动时不扫描类路径 -->\n");
+		xml.append("\n");
+		xml.append("    <!-- 处理 @Autowired, @PersistenceContext 等注解, 原来由 context:component-scan 注册 -->\n");
+		xml.append("    <context:annotation-config/>\n");
+		xml.append("\n");
+		for (Map.Entry<String, String> component : components.entrySet()) {
+			xml.append("    <bean id=\"").append(component.getKey()).append("\" class=\"")
+					.append(component.getValue()).append("\"/>\n");
+		}
+		for (Map.Entry<String, String> repository : repositories.entrySet()) {
+			String implementation = repository.getValue() + IMPLEMENTATION_POSTFIX;
+			boolean hasImplementation = ClassUtils.isPresent(implementation,
+					RepositoryDefinitionsGenerator.class.getClassLoader());
+			xml.append("\n");
+			if (hasImplementation) {
+				xml.append("    <bean id=\"").append(repository.getKey()).append(IMPLEMENTATION_POSTFIX)
+						.append("\" class=\"").append(implementation).append("\"/>\n");
+			}
+			xml.append("    <bean id=\"").append(repository.getKey())
+					.append("\" class=\"").append(CommonJpaRepositoryFactoryBean.class.getName()).append("\">\n");
+			xml.append("        <property name=\"repositoryInterface\" value=\"").append(repository.getValue())
+					.append("\"/>\n");
+			if (hasImplementation) {
+				xml.append("        <property name=\"customImplementation\" ref=\"").append(repository.getKey())
+						.append(IMPLEMENTATION_POSTFIX).append("\"/>\n");
+			}
+			xml.append("        <property name=\"lazyQueries\" value=\"true\"/>\n");
+			xml.append("    </bean>\n");
+		}
+		xml.append("</beans>\n");
+		return xml.toString();
+	}
+
+	private static ClassPathScanningCandidateComponentProvider createRepositoryScanner() {
+		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false) {
+			// 默认只接受具体类, Repository 是接口
+			@Override
+			protected boolean isCandidateComponent(AnnotatedBeanDefinition beanDefinition) {
+				return beanDefinition.getMetadata().isInterface();
+			}
+		};
+		scanner.addIncludeFilter(new AssignableTypeFilter(Repository.class));
+		scanner.addIncludeFilter(new AnnotationTypeFilter(RepositoryDefinition.class, true, true));
+		scanner.addExcludeFilter(new AnnotationTypeFilter(NoRepositoryBean.class));
+		return scanner;
+	}
+}
@@ -0,0 +1,555 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.MappingException;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.core.RepositoryInformation;
+import org.springframework.data.repository.query.parser.Part;
+import org.springframework.data.repository.query.parser.PartTree;
+import org.springframework.data.repository.support.Repositories;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * 启动时分析所有 Repository 中声明的查询方法需要哪些索引
+ *
+ * 1. 方法名查询用 SpringData 的 PartTree 解析, @Query 的 JPQL 用正则表达式解析 WHERE 子句(不支持原生 SQL)
+ * 2. OR 连接的每一组条件各需要一个索引; 每组中等值条件(=, IN, IS NULL)的列在前, 范围条件(<, >, BETWEEN, LIKE 'x%')的列在后,
+ *    只有第一个范围条件能用于索引查找, 后面的列用于在索引中过滤
+ * 3. 无法使用索引的条件只报告, 不生成索引: 以 % 开头的 LIKE(包括 EndingWith / Containing), 不等于, NOT IN, NOT LIKE
+ * 4. 从数据库的元数据中读取已有的索引, 已经被覆盖(前几列相同)的不再生成
+ *
+ * mode 为 REPORT 时只输出到日志, 为 CREATE 时执行缺少的 CREATE INDEX
+ * 建议的索引最好同时写到实体类的 @org.hibernate.annotations.Table(indexes = ...) 中, 见 Person
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=RepositoryIndexAdvisor")
+public class RepositoryIndexAdvisor implements ApplicationListener<ContextRefreshedEvent> {
+
+	public enum Mode {
+		NONE, REPORT, CREATE
+	}
+
+	private static final Log LOG = LogFactory.getLog(RepositoryIndexAdvisor.class);
+
+	private static final Pattern FROM = Pattern.compile("\\b(?:FROM|UPDATE)\\s+(\\w+)\\s+(?:AS\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern JOIN = Pattern.compile(
+			"\\bJOIN\\s+(?:FETCH\\s+)?(\\w+)\\.([\\w.]+)\\s+(?:AS\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern WHERE = Pattern.compile(
+			"\\bWHERE\\b(.*?)(?:\\bGROUP\\s+BY\\b|\\bORDER\\s+BY\\b|$)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern SUBQUERY = Pattern.compile("\\(\\s*SELECT\\b[^()]*\\)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern OR = Pattern.compile("\\s+OR\\s+", Pattern.CASE_INSENSITIVE);
+	private static final Pattern CONDITION = Pattern.compile(
+			"(\\w+\\s*\\(\\s*)?\\b(\\w+)\\.([\\w.]+)\\s*(\\)\\s*)?"
+					+ "(<>|!=|<=|>=|=|<|>|NOT\\s+LIKE|LIKE|NOT\\s+IN|IN|NOT\\s+BETWEEN|BETWEEN|IS\\s+NOT\\s+NULL|IS\\s+NULL)"
+					+ "\\s*([^\\s)]*)", Pattern.CASE_INSENSITIVE);
+
+	private EntityManagerFactory entityManagerFactory;
+	private DataSource dataSource;
+	private Mode mode = Mode.REPORT;
+
+	private volatile List<MethodAdvice> advices = Collections.emptyList();
+	private volatile Map<String, IndexCandidate> missingIndexes = Collections.emptyMap();
+
+	public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		// 只处理根容器的事件
+		if (mode == Mode.NONE || event.getApplicationContext().getParent() != null) {
+			return;
+		}
+		try {
+			analyze(new Repositories(event.getApplicationContext()));
+			if (mode == Mode.CREATE) {
+				createMissingIndexes();
+			}
+			if (LOG.isInfoEnabled()) {
+				LOG.info("Repository index analysis:\n" + getReport());
+			}
+		} catch (Exception e) {
+			// 分析失败不影响启动
+			LOG.warn("Repository index analysis failed", e);
+		}
+	}
+
+	void analyze(Repositories repositories) throws SQLException {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+				((HibernateEntityManagerFactory) entityManagerFactory).getSessionFactory();
+		List<MethodAdvice> advices = new ArrayList<MethodAdvice>();
+		for (Class<?> domainClass : repositories) {
+			RepositoryInformation information = repositories.getRepositoryInformationFor(domainClass);
+			if (information == null) {
+				continue;
+			}
+			for (Method method : information.getQueryMethods()) {
+				MethodAdvice advice = new MethodAdvice(
+						information.getRepositoryInterface().getSimpleName() + "." + method.getName());
+				try {
+					Query query = AnnotationUtils.findAnnotation(method, Query.class);
+					if (query == null) {
+						analyzeDerivedQuery(sessionFactory, method.getName(), domainClass, advice);
+					} else if (query.nativeQuery()) {
+						advice.warnings.add("native query, not analyzed");
+					} else {
+						analyzeJpql(sessionFactory, query.value(), advice);
+					}
+				} catch (RuntimeException e) {
+					advice.warnings.add("unable to analyze: " + e.getMessage());
+				}
+				advices.add(advice);
+			}
+		}
+
+		Map<String, IndexCandidate> missingIndexes = new TreeMap<String, IndexCandidate>();
+		Connection connection = dataSource.getConnection();
+		try {
+			Map<String, List<List<String>>> existingIndexes = new HashMap<String, List<List<String>>>();
+			for (MethodAdvice advice : advices) {
+				for (IndexCandidate candidate : advice.candidates) {
+					List<List<String>> existing = existingIndexes.get(candidate.table);
+					if (existing == null) {
+						existing = readIndexes(connection.getMetaData(), candidate.table);
+						existingIndexes.put(candidate.table, existing);
+					}
+					candidate.covered = candidate.isCoveredBy(existing);
+					if (!candidate.covered) {
+						missingIndexes.put(candidate.getName(), candidate);
+					}
+				}
+			}
+		} finally {
+			connection.close();
+		}
+		this.advices = advices;
+		this.missingIndexes = missingIndexes;
+	}
+
+	private void analyzeDerivedQuery(SessionFactoryImplementor sessionFactory, String methodName, Class<?> domainClass,
+			MethodAdvice advice) {
+		AbstractEntityPersister persister = getPersister(sessionFactory, domainClass.getName());
+		PartTree tree = new PartTree(methodName, domainClass);
+		for (PartTree.OrPart orPart : tree) {
+			List<Condition> conditions = new ArrayList<Condition>();
+			for (Part part : orPart) {
+				conditions.add(new Condition(part.getProperty().toDotPath(), classify(part.getType()), part.getType().name()));
+			}
+			addCandidates(sessionFactory, persister, conditions, advice);
+		}
+	}
+
+	private static Kind classify(Part.Type type) {
+		switch (type) {
+		case SIMPLE_PROPERTY:
+		case IN:
+		case IS_NULL:
+		case TRUE:
+		case FALSE:
+			return Kind.EQUALITY;
+		case LESS_THAN:
+		case LESS_THAN_EQUAL:
+		case GREATER_THAN:
+		case GREATER_THAN_EQUAL:
+		case BEFORE:
+		case AFTER:
+		case BETWEEN:
+		case STARTING_WITH:
+			return Kind.RANGE;
+		case LIKE:
+			// 模式由调用者传入, 以 % 开头时同样无法使用索引
+			return Kind.RANGE;
+		default:
+			// ENDING_WITH, CONTAINING, NOT_LIKE, NOT_IN, NEGATING_SIMPLE_PROPERTY, IS_NOT_NULL 等
+			return Kind.UNINDEXABLE;
+		}
+	}
+
+	private void analyzeJpql(SessionFactoryImplementor sessionFactory, String jpql, MethodAdvice advice) {
+		// 子查询单独执行, 不参与外层查询的索引分析
+		String query = SUBQUERY.matcher(jpql).replaceAll("(subquery)");
+
+		// 别名 -> 根实体的持久化器和相对于根实体的属性路径
+		Map<String, AbstractEntityPersister> rootByAlias = new HashMap<String, AbstractEntityPersister>();
+		Map<String, String> pathByAlias = new HashMap<String, String>();
+		Matcher from = FROM.matcher(query);
+		if (!from.find()) {
+			advice.warnings.add("no FROM clause found");
+			return;
+		}
+		rootByAlias.put(from.group(2), getPersister(sessionFactory, sessionFactory.getImportedClassName(from.group(1))));
+		pathByAlias.put(from.group(2), "");
+		Matcher join = JOIN.matcher(query);
+		while (join.find()) {
+			String parent = join.group(1);
+			if (rootByAlias.containsKey(parent)) {
+				rootByAlias.put(join.group(3), rootByAlias.get(parent));
+				pathByAlias.put(join.group(3), pathByAlias.get(parent) + join.group(2) + ".");
+			}
+		}
+
+		Matcher where = WHERE.matcher(query);
+		if (!where.find()) {
+			advice.warnings.add("no WHERE clause, full table scan");
+			return;
+		}
+		String[] groups = OR.split(where.group(1));
+		for (String group : groups) {
+			Map<AbstractEntityPersister, List<Condition>> conditionsByRoot =
+					new LinkedHashMap<AbstractEntityPersister, List<Condition>>();
+			Matcher condition = CONDITION.matcher(group);
+			while (condition.find()) {
+				AbstractEntityPersister root = rootByAlias.get(condition.group(2));
+				if (root == null) {
+					continue;
+				}
+				String path = pathByAlias.get(condition.group(2)) + condition.group(3);
+				String operator = condition.group(5).toUpperCase(Locale.ENGLISH).replaceAll("\\s+", " ");
+				String operand = condition.group(6);
+				Kind kind;
+				String description = operator + " " + operand;
+				if (condition.group(1) != null) {
+					kind = Kind.UNINDEXABLE;
+					description = "function " + condition.group(1).trim() + "...) " + description;
+				} else {
+					kind = classify(operator, operand);
+				}
+				List<Condition> conditions = conditionsByRoot.get(root);
+				if (conditions == null) {
+					conditions = new ArrayList<Condition>();
+					conditionsByRoot.put(root, conditions);
+				}
+				conditions.add(new Condition(path, kind, description));
+			}
+			if (conditionsByRoot.isEmpty()) {
+				// 例如没有使用别名的条件
+				advice.warnings.add("unable to parse conditions: " + group.trim());
+			}
+			for (Map.Entry<AbstractEntityPersister, List<Condition>> entry : conditionsByRoot.entrySet()) {
+				addCandidates(sessionFactory, entry.getKey(), entry.getValue(), advice);
+			}
+		}
+	}
+
+	private static Kind classify(String operator, String operand) {
+		if (operator.equals("=") || operator.equals("IN") || operator.equals("IS NULL")) {
+			return Kind.EQUALITY;
+		}
+		if (operator.equals("LIKE")) {
+			// LIKE %?1 或 LIKE '%abc'
+			return operand.startsWith("%") || operand.startsWith("'%") ? Kind.UNINDEXABLE : Kind.RANGE;
+		}
+		if (operator.equals("<") || operator.equals(">") || operator.equals("<=") || operator.equals(">=")
+				|| operator.equals("BETWEEN")) {
+			return Kind.RANGE;
+		}
+		return Kind.UNINDEXABLE;
+	}
+
+	/**
+	 * 一组 AND 连接的条件: 按表分组后各生成一个索引, 等值条件的列在前, 范围条件的列在后
+	 */
+	private void addCandidates(SessionFactoryImplementor sessionFactory, AbstractEntityPersister root,
+			List<Condition> conditions, MethodAdvice advice) {
+		Map<String, IndexCandidate> candidates = new LinkedHashMap<String, IndexCandidate>();
+		for (Condition condition : conditions) {
+			if (condition.kind == Kind.UNINDEXABLE) {
+				advice.warnings.add(condition.path + " " + condition.description + " cannot use an index");
+				continue;
+			}
+			String[] tableAndColumn = resolveColumn(sessionFactory, root, condition.path);
+			if (tableAndColumn == null) {
+				advice.warnings.add("unable to resolve column for " + condition.path);
+				continue;
+			}
+			IndexCandidate candidate = candidates.get(tableAndColumn[0]);
+			if (candidate == null) {
+				candidate = new IndexCandidate(tableAndColumn[0]);
+				candidates.put(tableAndColumn[0], candidate);
+			}
+			candidate.add(tableAndColumn[1], tableAndColumn[2], condition.kind);
+		}
+		if (candidates.isEmpty()) {
+			advice.warnings.add("no indexable condition, full table scan");
+		}
+		advice.candidates.addAll(candidates.values());
+	}
+
+	/**
+	 * 把属性路径转换为表名、列名和 @Index 中使用的逻辑列名
+	 * address.id 这样引用关联实体 id 的路径直接使用外键列, 引用关联实体其他属性时使用关联实体的表
+	 */
+	private String[] resolveColumn(SessionFactoryImplementor sessionFactory, AbstractEntityPersister persister, String path) {
+		try {
+			String[] columns = persister.getPropertyColumnNames(path);
+			if (columns.length == 1) {
+				return new String[] {persister.getTableName(), columns[0], logicalColumnName(path, columns[0])};
+			}
+			return null;
+		} catch (MappingException e) {
+			int dot = path.indexOf('.');
+			if (dot < 0) {
+				return null;
+			}
+			Type type = persister.getPropertyType(path.substring(0, dot));
+			if (!(type instanceof EntityType)) {
+				return null;
+			}
+			AbstractEntityPersister target = getPersister(sessionFactory,
+					((EntityType) type).getAssociatedEntityName(sessionFactory));
+			return resolveColumn(sessionFactory, target, path.substring(dot + 1));
+		}
+	}
+
+	/**
+	 * 没有用 @Column 指定列名时, 逻辑列名就是属性名, 列名由 ImprovedNamingStrategy 转换为下划线的形式
+	 * 列名和属性名去掉下划线后相同时认为没有指定列名, 否则认为是 @Column / @JoinColumn 中按本项目的习惯用大写指定的列名
+	 */
+	private static String logicalColumnName(String path, String column) {
+		if (path.indexOf('.') < 0 && column.replace("_", "").equalsIgnoreCase(path)) {
+			return path;
+		}
+		return column.toUpperCase(Locale.ENGLISH);
+	}
+
+	private static AbstractEntityPersister getPersister(SessionFactoryImplementor sessionFactory, String entityName) {
+		return (AbstractEntityPersister) sessionFactory.getEntityPersister(entityName);
+	}
+
+	/**
+	 * 读取表上已有的索引(包括主键), 每个索引是按顺序排列的列名
+	 */
+	private static List<List<String>> readIndexes(DatabaseMetaData metaData, String table) throws SQLException {
+		// MySQL 在 Linux 上表名区分大小写, H2 保存的是大写的表名
+		for (String name : new String[] {table, table.toUpperCase(Locale.ENGLISH), table.toLowerCase(Locale.ENGLISH)}) {
+			Map<String, TreeMap<Short, String>> indexes = new LinkedHashMap<String, TreeMap<Short, String>>();
+			ResultSet rs = metaData.getIndexInfo(null, null, name, false, true);
+			try {
+				while (rs.next()) {
+					String indexName = rs.getString("INDEX_NAME");
+					String column = rs.getString("COLUMN_NAME");
+					if (indexName == null || column == null) {
+						continue;
+					}
+					TreeMap<Short, String> columns = indexes.get(indexName);
+					if (columns == null) {
+						columns = new TreeMap<Short, String>();
+						indexes.put(indexName, columns);
+					}
+					columns.put(rs.getShort("ORDINAL_POSITION"), column.toUpperCase(Locale.ENGLISH));
+				}
+			} finally {
+				rs.close();
+			}
+			if (!indexes.isEmpty()) {
+				List<List<String>> result = new ArrayList<List<String>>();
+				for (TreeMap<Short, String> columns : indexes.values()) {
+					result.add(new ArrayList<String>(columns.values()));
+				}
+				return result;
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	@ManagedOperation(description = "执行缺少的 CREATE INDEX")
+	public int createMissingIndexes() throws SQLException {
+		int created = 0;
+		Connection connection = dataSource.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				for (IndexCandidate candidate : missingIndexes.values()) {
+					LOG.info("Creating index: " + candidate.toDdl());
+					statement.execute(candidate.toDdl());
+					candidate.covered = true;
+					created++;
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		missingIndexes = Collections.emptyMap();
+		return created;
+	}
+
+	@ManagedAttribute(description = "缺少的索引的 DDL")
+	public List<String> getMissingIndexes() {
+		List<String> ddl = new ArrayList<String>();
+		for (IndexCandidate candidate : missingIndexes.values()) {
+			ddl.add(candidate.toDdl());
+		}
+		return ddl;
+	}
+
+	@ManagedAttribute(description = "每个查询方法需要的索引和无法使用索引的条件")
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (MethodAdvice advice : advices) {
+			report.append(advice.method).append('\n');
+			for (IndexCandidate candidate : advice.candidates) {
+				report.append("    ").append(candidate.covered ? "OK      " : "MISSING ").append(candidate.table)
+						.append(candidate.columns).append('\n');
+			}
+			for (String warning : advice.warnings) {
+				report.append("    WARN    ").append(warning).append('\n');
+			}
+		}
+		if (!missingIndexes.isEmpty()) {
+			report.append("Missing indexes:\n");
+			for (IndexCandidate candidate : missingIndexes.values()) {
+				report.append("    ").append(candidate.toDdl()).append('\n');
+				report.append("    ").append(candidate.toAnnotation()).append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+
+	private enum Kind {
+		EQUALITY, RANGE, UNINDEXABLE
+	}
+
+	private static class Condition {
+		private final String path;
+		private final Kind kind;
+		private final String description;
+
+		Condition(String path, Kind kind, String description) {
+			this.path = path;
+			this.kind = kind;
+			this.description = description;
+		}
+	}
+
+	private static class MethodAdvice {
+		private final String method;
+		private final List<IndexCandidate> candidates = new ArrayList<IndexCandidate>();
+		private final List<String> warnings = new ArrayList<String>();
+
+		MethodAdvice(String method) {
+			this.method = method;
+		}
+	}
+
+	private static class IndexCandidate {
+		private final String table;
+		private final List<String> columns = new ArrayList<String>();
+		private final List<String> logicalColumns = new ArrayList<String>();
+		// 等值条件的列数, 这些列之后的第一列是用于查找的范围条件的列
+		private int equalityColumns;
+		private boolean covered;
+
+		IndexCandidate(String table) {
+			this.table = table;
+		}
+
+		void add(String column, String logicalColumn, Kind kind) {
+			column = column.toUpperCase(Locale.ENGLISH);
+			if (columns.contains(column)) {
+				return;
+			}
+			if (kind == Kind.EQUALITY) {
+				columns.add(equalityColumns, column);
+				logicalColumns.add(equalityColumns++, logicalColumn);
+			} else {
+				columns.add(column);
+				logicalColumns.add(logicalColumn);
+			}
+		}
+
+		/**
+		 * 已有索引的前几列是全部等值条件的列(顺序不限), 紧接着是第一个范围条件的列
+		 */
+		boolean isCoveredBy(List<List<String>> indexes) {
+			int prefix = Math.min(columns.size(), equalityColumns + 1);
+			for (List<String> index : indexes) {
+				if (index.size() < prefix) {
+					continue;
+				}
+				if (index.subList(0, equalityColumns).containsAll(columns.subList(0, equalityColumns))
+						&& (prefix == equalityColumns || index.get(equalityColumns).equals(columns.get(equalityColumns)))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		String getName() {
+			StringBuilder name = new StringBuilder("IDX_").append(table.toUpperCase(Locale.ENGLISH));
+			for (String column : columns) {
+				name.append('_').append(column);
+			}
+			return name.toString();
+		}
+
+		String toDdl() {
+			StringBuilder ddl = new StringBuilder("CREATE INDEX ").append(getName()).append(" ON ").append(table)
+					.append(" (");
+			for (int i = 0; i < columns.size(); i++) {
+				if (i > 0) {
+					ddl.append(", ");
+				}
+				ddl.append(columns.get(i));
+			}
+			return ddl.append(')').toString();
+		}
+
+		// @org.hibernate.annotations.Index 的 columnNames 使用逻辑列名
+		String toAnnotation() {
+			StringBuilder annotation = new StringBuilder("@Index(name = \"").append(getName())
+					.append("\", columnNames = {");
+			for (int i = 0; i < logicalColumns.size(); i++) {
+				if (i > 0) {
+					annotation.append(", ");
+				}
+				annotation.append('"').append(logicalColumns.get(i)).append('"');
+			}
+			return annotation.append("})").toString();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * 每个 Repository 方法的调用次数、耗时分布、执行的 SQL 数量和返回的记录数
+ * 由 RepositoryMetricsPostProcessor 记录, 超过阈值的慢调用连同参数一起输出到日志
+ * 在 applicationContext.xml 中注册为 bean 后通过 JMX 暴露
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=RepositoryMetrics")
+public class RepositoryMetrics {
+
+	private static final Log LOG = LogFactory.getLog(RepositoryMetrics.class);
+
+	private static final RepositoryMetrics INSTANCE = new RepositoryMetrics();
+
+	// 耗时分布的桶: 第 i 个桶统计 [2^i, 2^(i+1)) 微秒的调用, 最后一个桶统计更慢的调用
+	private static final int BUCKETS = 25;
+
+	// 慢调用日志中参数的最大长度
+	private static final int MAX_ARGUMENTS_LENGTH = 500;
+
+	private final ConcurrentMap<String, MethodMetrics> metrics = new ConcurrentHashMap<String, MethodMetrics>();
+
+	private volatile long slowThresholdMillis = 200;
+
+	public static RepositoryMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	public MethodMetrics getMethodMetrics(String name) {
+		MethodMetrics methodMetrics = metrics.get(name);
+		if (methodMetrics == null) {
+			MethodMetrics created = new MethodMetrics(name);
+			methodMetrics = metrics.putIfAbsent(name, created);
+			if (methodMetrics == null) {
+				methodMetrics = created;
+			}
+		}
+		return methodMetrics;
+	}
+
+	public void record(MethodMetrics methodMetrics, long nanos, long statements, long rows, boolean failed, Object[] arguments) {
+		methodMetrics.record(nanos, statements, rows, failed);
+		long millis = nanos / 1000000;
+		if (millis >= slowThresholdMillis && LOG.isWarnEnabled()) {
+			LOG.warn("Slow repository call " + methodMetrics.name + ": " + millis + " ms, " + statements
+					+ " statements, " + rows + " rows, parameters " + abbreviate(Arrays.deepToString(arguments)));
+		}
+	}
+
+	@ManagedAttribute(description = "慢调用的阈值(毫秒)")
+	public long getSlowThresholdMillis() {
+		return slowThresholdMillis;
+	}
+
+	@ManagedAttribute
+	public void setSlowThresholdMillis(long slowThresholdMillis) {
+		this.slowThresholdMillis = slowThresholdMillis;
+	}
+
+	@ManagedAttribute(description = "每个方法的统计信息")
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (MethodMetrics methodMetrics : new TreeMap<String, MethodMetrics>(metrics).values()) {
+			report.append(methodMetrics).append('\n');
+		}
+		return report.toString();
+	}
+
+	public Map<String, MethodMetrics> getMetrics() {
+		return new TreeMap<String, MethodMetrics>(metrics);
+	}
+
+	@ManagedOperation(description = "清空统计信息")
+	public void reset() {
+		metrics.clear();
+	}
+
+	private static String abbreviate(String text) {
+		return text.length() <= MAX_ARGUMENTS_LENGTH ? text : text.substring(0, MAX_ARGUMENTS_LENGTH) + "...";
+	}
+
+	public static class MethodMetrics {
+
+		private final String name;
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong statements = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		MethodMetrics(String name) {
+			this.name = name;
+		}
+
+		void record(long nanos, long statements, long rows, boolean failed) {
+			calls.incrementAndGet();
+			if (failed) {
+				failures.incrementAndGet();
+			}
+			totalNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			}
+			this.statements.addAndGet(statements);
+			this.rows.addAndGet(rows);
+
+			long micros = nanos / 1000;
+			int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+			histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCalls() {
+			return calls.get();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public long getAverageMicros() {
+			long count = calls.get();
+			return count == 0 ? 0 : totalNanos.get() / count / 1000;
+		}
+
+		public long getMaxMicros() {
+			return maxNanos.get() / 1000;
+		}
+
+		public long getStatements() {
+			return statements.get();
+		}
+
+		public long getRows() {
+			return rows.get();
+		}
+
+		/**
+		 * 根据耗时分布估算百分位数, 返回所在桶的上界(微秒)
+		 * @param percentile 0 到 100 之间
+		 */
+		public long getPercentileMicros(double percentile) {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += histogram.get(i);
+			}
+			long threshold = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += histogram.get(i);
+				if (seen >= threshold && seen > 0) {
+					return 1L << (i + 1);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return name + " [calls=" + getCalls() + ", failures=" + getFailures() + ", avg=" + getAverageMicros()
+					+ "us, p50<=" + getPercentileMicros(50) + "us, p99<=" + getPercentileMicros(99) + "us, max="
+					+ getMaxMicros() + "us, statements=" + getStatements() + ", rows=" + getRows() + "]";
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.repository.core.RepositoryInformation;
+import org.springframework.data.repository.core.support.RepositoryProxyPostProcessor;
+
+/**
+ * 为 Repository 代理添加拦截器, 把每次调用的耗时、SQL 数量和返回的记录数记录到 RepositoryMetrics 中
+ */
+public class RepositoryMetricsPostProcessor implements RepositoryProxyPostProcessor {
+
+	@Override
+	public void postProcess(ProxyFactory factory, RepositoryInformation repositoryInformation) {
+		factory.addAdvice(new MetricsInterceptor(repositoryInformation.getRepositoryInterface()));
+	}
+
+	private static class MetricsInterceptor implements MethodInterceptor {
+
+		private final Class<?> repositoryInterface;
+		private final RepositoryMetrics repositoryMetrics = RepositoryMetrics.getInstance();
+		private final ConcurrentMap<Method, RepositoryMetrics.MethodMetrics> metricsByMethod =
+				new ConcurrentHashMap<Method, RepositoryMetrics.MethodMetrics>();
+
+		MetricsInterceptor(Class<?> repositoryInterface) {
+			this.repositoryInterface = repositoryInterface;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			RepositoryMetrics.MethodMetrics methodMetrics = getMethodMetrics(invocation.getMethod());
+			long statementsBefore = StatementCountingInterceptor.currentCount();
+			long start = System.nanoTime();
+			Object result = null;
+			boolean failed = true;
+			try {
+				result = invocation.proceed();
+				failed = false;
+				return result;
+			} finally {
+				long nanos = System.nanoTime() - start;
+				long statements = StatementCountingInterceptor.currentCount() - statementsBefore;
+				repositoryMetrics.record(methodMetrics, nanos, statements, countRows(result), failed,
+						invocation.getArguments());
+			}
+		}
+
+		private RepositoryMetrics.MethodMetrics getMethodMetrics(Method method) {
+			RepositoryMetrics.MethodMetrics methodMetrics = metricsByMethod.get(method);
+			if (methodMetrics == null) {
+				methodMetrics = repositoryMetrics.getMethodMetrics(name(method));
+				metricsByMethod.put(method, methodMetrics);
+			}
+			return methodMetrics;
+		}
+
+		// 例如 PersonRepository.findAll(Specification,Pageable)
+		private String name(Method method) {
+			StringBuilder name = new StringBuilder(repositoryInterface.getSimpleName()).append('.')
+					.append(method.getName()).append('(');
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			for (int i = 0; i < parameterTypes.length; i++) {
+				if (i > 0) {
+					name.append(',');
+				}
+				name.append(parameterTypes[i].getSimpleName());
+			}
+			return name.append(')').toString();
+		}
+
+		private static long countRows(Object result) {
+			if (result == null) {
+				return 0;
+			}
+			if (result instanceof Collection) {
+				return ((Collection<?>) result).size();
+			}
+			if (result instanceof Page) {
+				return ((Page<?>) result).getNumberOfElements();
+			}
+			if (result instanceof KeysetSlice) {
+				return ((KeysetSlice<?>) result).getNumberOfElements();
+			}
+			if (result instanceof OffsetSlice) {
+				return ((OffsetSlice<?>) result).getNumberOfElements();
+			}
+			return result instanceof Number || result instanceof Boolean ? 0 : 1;
+		}
+	}
+}
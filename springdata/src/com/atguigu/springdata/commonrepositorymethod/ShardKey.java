@@ -0,0 +1,23 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 分片键(见 ShardingPostProcessor, 只在配置了 ShardRoutingDataSource 时生效)
+ *
+ * 1. 标注在实体的 getter 上: 按这个属性的值决定实体保存在哪个分片, save / delete 等以实体为参数的方法据此路由
+ *    分片键保存后不能再修改, 否则之后的修改会发到另一个分片: updateInBatch / updateAll 修改分片键时会抛出异常,
+ *    save 无法发现修改(记录在原来的分片上), 需要修改时先删除, 再用新的值重新保存
+ * 2. 标注在 Repository 方法的参数上: 参数的值与实体的分片键相同, 只查询这一个分片, 例如 getByLastName
+ *    参数是集合时按每个值所在的分片拆分, 分别执行后合并
+ * 其他方法访问所有的分片, 合并结果(scatter-gather)
+ */
+@Documented
+@Target({ElementType.METHOD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ShardKey {
+}
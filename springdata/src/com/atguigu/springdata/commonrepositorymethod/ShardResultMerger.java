@@ -0,0 +1,264 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.NullValueInNestedPathException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * 合并各个分片返回的结果, 按方法的返回类型:
+ * 1. void 返回 null; 数字(count, getTotalCount, UPDATE 的行数等)求和; boolean 任意一个为 true 即为 true
+ * 2. List / Collection / Iterable 拼接; 有 Sort 或 Pageable 参数时每个分片的结果已经排好序, 按 Sort 多路归并
+ * 3. Page: 每个分片查询前 offset + size 条(见 pageForShards), 多路归并后取 [offset, offset + size), 总数求和
+ * 4. 按 id 查询单个实体(findOne(ID)): id 在所有分片中唯一, 返回第一个不为 null 的结果
+ * 按 Sort 归并时字符串不区分大小写比较, 与 MySQL 默认的 _ci 排序规则一致(其他规则, 例如尾部空格、重音, 没有模拟),
+ * 分片数据库的排序规则需要与之相同, 否则各分片的顺序与归并的顺序不一致
+ * 不支持 KeysetSlice / OffsetSlice 这类需要分片内游标的返回类型, 也不支持其他返回单个结果的方法
+ * (例如 getMaxIdPerson, 每个分片各有一个结果, 无法合并; getOne(ID) 在每个分片上都返回不为 null 的代理),
+ * 这些方法需要用 ShardContext 指定分片
+ */
+class ShardResultMerger {
+
+	private ShardResultMerger() {
+	}
+
+	/**
+	 * 各分片执行的分页参数: 深分页时每个分片都要返回 offset + size 条, 代价随页码增长
+	 */
+	static Pageable pageForShards(Pageable pageable) {
+		return new PageRequest(0, pageable.getOffset() + pageable.getPageSize(), pageable.getSort());
+	}
+
+	static Object merge(Method method, Object[] args, List<Object> results) {
+		Class<?> returnType = method.getReturnType();
+		if (returnType == void.class) {
+			return null;
+		}
+		if (returnType == boolean.class || returnType == Boolean.class) {
+			for (Object result : results) {
+				if (Boolean.TRUE.equals(result)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (Number.class.isAssignableFrom(returnType) || returnType == int.class || returnType == long.class) {
+			return sum(returnType, results);
+		}
+
+		Pageable pageable = find(args, Pageable.class);
+		Sort sort = pageable != null ? pageable.getSort() : find(args, Sort.class);
+		if (Page.class.isAssignableFrom(returnType)) {
+			long total = 0;
+			List<Iterable<?>> contents = new ArrayList<Iterable<?>>();
+			for (Object result : results) {
+				Page<?> page = (Page<?>) result;
+				total += page.getTotalElements();
+				contents.add(page.getContent());
+			}
+			List<Object> content = slice(mergeSorted(contents, sort), pageable);
+			return pageable == null ? new PageImpl<Object>(content) : new PageImpl<Object>(content, pageable, total);
+		}
+		if (Iterable.class.isAssignableFrom(returnType)) {
+			if (!returnType.isAssignableFrom(ArrayList.class) && !returnType.isAssignableFrom(LinkedHashSet.class)) {
+				throw new UnsupportedOperationException(method + " cannot be executed across shards,"
+						+ " use ShardContext to select a shard");
+			}
+			List<Iterable<?>> contents = new ArrayList<Iterable<?>>();
+			for (Object result : results) {
+				if (result != null) {
+					contents.add((Iterable<?>) result);
+				}
+			}
+			List<Object> merged = slice(mergeSorted(contents, sort), pageable);
+			if (returnType.isAssignableFrom(ArrayList.class)) {
+				return merged;
+			}
+			return new LinkedHashSet<Object>(merged);
+		}
+		if (!isFindById(method)) {
+			throw new UnsupportedOperationException(method + " cannot be executed across shards,"
+					+ " use ShardContext to select a shard");
+		}
+		for (Object result : results) {
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 按 ids 的顺序排列合并后的实体, 与 CommonMethodTestImpl.findAll(ids) 相同: 重复的 id 只保留一个, 不存在的 id 跳过
+	 */
+	static List<Object> sortByIds(List<?> entities, Iterable<?> ids, Method idGetter) {
+		Map<Object, Object> entitiesById = new HashMap<Object, Object>();
+		for (Object entity : entities) {
+			entitiesById.put(ReflectionUtils.invokeMethod(idGetter, entity), entity);
+		}
+		List<Object> sorted = new ArrayList<Object>(entitiesById.size());
+		for (Object id : ids) {
+			Object entity = entitiesById.remove(id);
+			if (entity != null) {
+				sorted.add(entity);
+			}
+		}
+		return sorted;
+	}
+
+	// CrudRepository.findOne(ID), 擦除后参数类型为 Serializable, 与 findOne(Specification) 区分
+	private static boolean isFindById(Method method) {
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		return method.getName().equals("findOne") && parameterTypes.length == 1
+				&& parameterTypes[0] == Serializable.class;
+	}
+
+	private static Object sum(Class<?> returnType, List<Object> results) {
+		long sum = 0;
+		for (Object result : results) {
+			if (result != null) {
+				sum += ((Number) result).longValue();
+			}
+		}
+		if (returnType == int.class || returnType == Integer.class) {
+			return (int) sum;
+		}
+		if (returnType == long.class || returnType == Long.class) {
+			return sum;
+		}
+		throw new UnsupportedOperationException("Cannot sum results of type " + returnType.getName());
+	}
+
+	private static <A> A find(Object[] args, Class<A> type) {
+		if (args != null) {
+			for (Object arg : args) {
+				if (type.isInstance(arg)) {
+					return type.cast(arg);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static List<Object> slice(List<Object> merged, Pageable pageable) {
+		if (pageable == null) {
+			return merged;
+		}
+		int from = Math.min(pageable.getOffset(), merged.size());
+		int to = Math.min(pageable.getOffset() + pageable.getPageSize(), merged.size());
+		return new ArrayList<Object>(merged.subList(from, to));
+	}
+
+	/**
+	 * 多路归并: 每个分片的结果已经按 sort 排好序, 每次取各分片当前最小的一个
+	 * 没有 sort 时按分片的顺序拼接
+	 */
+	private static List<Object> mergeSorted(List<Iterable<?>> sortedResults, Sort sort) {
+		List<Object> merged = new ArrayList<Object>();
+		if (sort == null) {
+			for (Iterable<?> result : sortedResults) {
+				for (Object element : result) {
+					merged.add(element);
+				}
+			}
+			return merged;
+		}
+		final Comparator<Object> comparator = comparator(sort);
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(sortedResults.size(), 1),
+				new Comparator<Cursor>() {
+					@Override
+					public int compare(Cursor a, Cursor b) {
+						int result = comparator.compare(a.current, b.current);
+						// 相等时按分片的顺序, 结果是稳定的
+						return result != 0 ? result : a.shard - b.shard;
+					}
+				});
+		for (int i = 0; i < sortedResults.size(); i++) {
+			Iterator<?> iterator = sortedResults.get(i).iterator();
+			if (iterator.hasNext()) {
+				queue.add(new Cursor(i, iterator));
+			}
+		}
+		while (!queue.isEmpty()) {
+			Cursor cursor = queue.poll();
+			merged.add(cursor.current);
+			if (cursor.iterator.hasNext()) {
+				cursor.current = cursor.iterator.next();
+				queue.add(cursor);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * 按 Sort 中的属性比较, 支持 address.city 这样的级联属性; null 排在最前面, 字符串不区分大小写, 和 MySQL 的升序相同
+	 */
+	private static Comparator<Object> comparator(final Sort sort) {
+		return new Comparator<Object>() {
+			@Override
+			public int compare(Object a, Object b) {
+				BeanWrapperImpl wrapperA = new BeanWrapperImpl(a);
+				BeanWrapperImpl wrapperB = new BeanWrapperImpl(b);
+				for (Sort.Order order : sort) {
+					int result = compareValues(value(wrapperA, order.getProperty()), value(wrapperB, order.getProperty()));
+					if (result != 0) {
+						return order.isAscending() ? result : -result;
+					}
+				}
+				return 0;
+			}
+		};
+	}
+
+	private static Object value(BeanWrapperImpl wrapper, String property) {
+		try {
+			return wrapper.getPropertyValue(property);
+		} catch (NullValueInNestedPathException e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static int compareValues(Object a, Object b) {
+		if (a == b) {
+			return 0;
+		}
+		if (a == null) {
+			return -1;
+		}
+		if (b == null) {
+			return 1;
+		}
+		if (a instanceof String && b instanceof String) {
+			return String.CASE_INSENSITIVE_ORDER.compare((String) a, (String) b);
+		}
+		return ((Comparable) a).compareTo(b);
+	}
+
+	private static class Cursor {
+		final int shard;
+		final Iterator<?> iterator;
+		Object current;
+
+		Cursor(int shard, Iterator<?> iterator) {
+			this.shard = shard;
+			this.iterator = iterator;
+			this.current = iterator.next();
+		}
+	}
+}
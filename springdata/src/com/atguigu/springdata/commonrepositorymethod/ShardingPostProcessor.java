@@ -0,0 +1,349 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.persistence.Id;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.repository.core.RepositoryInformation;
+import org.springframework.data.repository.core.support.RepositoryProxyPostProcessor;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ReflectionUtils;
+
+import com.atguigu.springdata.datasource.ShardContext;
+import com.atguigu.springdata.datasource.ShardRoutingDataSource;
+
+/**
+ * 为 Repository 代理添加拦截器: 按 @ShardKey 选择分片, 没有分片键的方法访问所有的分片并合并结果
+ *
+ * 1. 已经用 ShardContext 指定了分片时直接执行
+ * 2. 参数上标注了 @ShardKey(例如 getByLastName), 或者参数是实体(save, delete, upsert 等)时只访问它所在的分片;
+ *    参数是实体或分片键的集合时按分片拆分, 分别执行后合并
+ * 3. 其他方法(findAll(spec, pageable), getTotalCount, 按 id 查询等)在每个分片上执行, 结果由 ShardResultMerger 合并;
+ *    按 id 修改、删除的方法也会发到所有分片, 只有 id 所在的分片会真正修改;
+ *    没有这条记录的分片抛出的 EmptyResultDataAccessException(例如 delete(ID))被忽略, 所有分片都没有时才抛出
+ * 4. 实体上没有 @ShardKey 时不分片, 在第 0 个分片上执行
+ * 5. 按 id 列表查询(findAll(Iterable<ID>) 等)发到所有分片, 合并后按传入的 id 重新排序, 和不分片时的结果顺序相同
+ * 6. 分片键不能原地修改: updateInBatch / updateAll 修改分片键属性时抛出 IllegalArgumentException,
+ *    否则记录会留在原来的分片上, 之后按新的值路由就找不到了; 需要修改时先删除, 再用新的值重新保存
+ *
+ * 事务:
+ * 拦截器在 Repository 的事务之前执行, 每个分片在自己的事务中执行, 跨分片的写操作不是原子的
+ * 在调用者的事务中只能访问一个分片: 事务中第一次访问的分片会绑定到事务上, 之后访问其他分片或者跨分片查询会抛出异常
+ */
+public class ShardingPostProcessor implements RepositoryProxyPostProcessor {
+
+	// 事务绑定的分片在 TransactionSynchronizationManager 中的 key
+	private static final Object TRANSACTION_SHARD = new Object();
+
+	private final ShardRoutingDataSource shards;
+
+	public ShardingPostProcessor(ShardRoutingDataSource shards) {
+		this.shards = shards;
+	}
+
+	@Override
+	public void postProcess(ProxyFactory factory, RepositoryInformation repositoryInformation) {
+		Class<?> domainType = repositoryInformation.getDomainType();
+		Method keyGetter = findGetter(domainType, ShardKey.class);
+		if (keyGetter != null) {
+			factory.addAdvice(new ShardingInterceptor(shards, domainType, keyGetter, findGetter(domainType, Id.class)));
+		}
+	}
+
+	// 标注了 annotation 的 getter, 实体的注解都标注在 getter 上(见 Person)
+	private static Method findGetter(Class<?> domainType, Class<? extends Annotation> annotation) {
+		for (Method method : domainType.getMethods()) {
+			if (method.getParameterTypes().length == 0 && AnnotationUtils.findAnnotation(method, annotation) != null) {
+				return method;
+			}
+		}
+		return null;
+	}
+
+	private static class ShardingInterceptor implements MethodInterceptor {
+
+		private final ShardRoutingDataSource shards;
+		private final Class<?> domainType;
+		private final Method keyGetter;
+		private final String keyProperty;
+		// 实体的 id 的 getter, 没有时按 id 列表查询的结果不重新排序
+		private final Method idGetter;
+		// 方法 -> 标注了 @ShardKey 的参数的位置, 没有时为 -1
+		private final ConcurrentMap<Method, Integer> keyParameters = new ConcurrentHashMap<Method, Integer>();
+
+		ShardingInterceptor(ShardRoutingDataSource shards, Class<?> domainType, Method keyGetter, Method idGetter) {
+			this.shards = shards;
+			this.domainType = domainType;
+			this.keyGetter = keyGetter;
+			this.keyProperty = BeanUtils.findPropertyForMethod(keyGetter).getName();
+			this.idGetter = idGetter;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Method method = invocation.getMethod();
+			if (method.getDeclaringClass() == Object.class) {
+				return invocation.proceed();
+			}
+			Object[] args = invocation.getArguments();
+			checkShardKeyNotUpdated(method, args);
+			if (ShardContext.get() != null) {
+				return invocation.proceed();
+			}
+			int keyParameter = keyParameter(method);
+			if (keyParameter >= 0 && args[keyParameter] != null) {
+				return route(invocation, keyParameter, false);
+			}
+			for (int i = 0; i < args.length; i++) {
+				if (domainType.isInstance(args[i]) || isEntities(args[i])) {
+					return route(invocation, i, true);
+				}
+			}
+			return scatter(invocation);
+		}
+
+		/**
+		 * updateInBatch(attribute, valuesById) 和 updateAll(spec, values) 直接修改分片上的记录, 不能用来修改分片键
+		 */
+		private void checkShardKeyNotUpdated(Method method, Object[] args) {
+			boolean updatesKey = false;
+			if (method.getName().equals("updateInBatch") && args.length == 2) {
+				updatesKey = keyProperty.equals(args[0]);
+			} else if (method.getName().equals("updateAll") && args.length == 2 && args[1] instanceof Map) {
+				updatesKey = ((Map<?, ?>) args[1]).containsKey(keyProperty);
+			}
+			if (updatesKey) {
+				throw new IllegalArgumentException("Shard key " + keyProperty + " of " + domainType.getSimpleName()
+						+ " cannot be updated in place, delete the entity and save it again with the new value");
+			}
+		}
+
+		private int keyParameter(Method method) {
+			Integer index = keyParameters.get(method);
+			if (index == null) {
+				index = -1;
+				Annotation[][] annotations = method.getParameterAnnotations();
+				for (int i = 0; i < annotations.length && index < 0; i++) {
+					for (Annotation annotation : annotations[i]) {
+						if (annotation instanceof ShardKey) {
+							index = i;
+						}
+					}
+				}
+				keyParameters.put(method, index);
+			}
+			return index;
+		}
+
+		private boolean isEntities(Object arg) {
+			if (!(arg instanceof Iterable)) {
+				return false;
+			}
+			boolean empty = true;
+			for (Object element : (Iterable<?>) arg) {
+				if (!domainType.isInstance(element)) {
+					return false;
+				}
+				empty = false;
+			}
+			return !empty;
+		}
+
+		private int shardOf(Object value, boolean entity) {
+			Object key = entity ? ReflectionUtils.invokeMethod(keyGetter, value) : value;
+			if (key == null) {
+				throw new IllegalArgumentException("Shard key " + keyGetter.getName() + " of " + value + " is null");
+			}
+			return shards.shardFor(key);
+		}
+
+		/**
+		 * 按参数 index 的值选择分片, 参数是集合时按分片拆分
+		 */
+		private Object route(MethodInvocation invocation, int index, boolean entity) throws Throwable {
+			Object arg = invocation.getArguments()[index];
+			if (!(arg instanceof Iterable)) {
+				return proceedOn(invocation, shardOf(arg, entity));
+			}
+			Map<Integer, List<Object>> groups = new TreeMap<Integer, List<Object>>();
+			for (Object element : (Iterable<?>) arg) {
+				int shard = shardOf(element, entity);
+				List<Object> group = groups.get(shard);
+				if (group == null) {
+					group = new ArrayList<Object>();
+					groups.put(shard, group);
+				}
+				group.add(element);
+			}
+			if (groups.size() == 1) {
+				return proceedOn(invocation, groups.keySet().iterator().next());
+			}
+			checkNoTransaction(invocation.getMethod());
+			Class<?> parameterType = invocation.getMethod().getParameterTypes()[index];
+			Map<Integer, Object[]> argsByShard = new LinkedHashMap<Integer, Object[]>();
+			for (Map.Entry<Integer, List<Object>> group : groups.entrySet()) {
+				Object[] args = invocation.getArguments().clone();
+				args[index] = parameterType.isAssignableFrom(ArrayList.class)
+						? group.getValue() : new LinkedHashSet<Object>(group.getValue());
+				argsByShard.put(group.getKey(), args);
+			}
+			return ShardResultMerger.merge(invocation.getMethod(), invocation.getArguments(),
+					executeAll(invocation, argsByShard, false));
+		}
+
+		private Object proceedOn(MethodInvocation invocation, int shard) throws Throwable {
+			bindToTransaction(shard);
+			ShardContext.set(shard);
+			try {
+				return invocation.proceed();
+			} finally {
+				ShardContext.clear();
+			}
+		}
+
+		private Object scatter(MethodInvocation invocation) throws Throwable {
+			checkNoTransaction(invocation.getMethod());
+			Object[] args = invocation.getArguments().clone();
+			for (int i = 0; i < args.length; i++) {
+				if (args[i] instanceof Pageable) {
+					args[i] = ShardResultMerger.pageForShards((Pageable) args[i]);
+				}
+			}
+			Map<Integer, Object[]> argsByShard = new LinkedHashMap<Integer, Object[]>();
+			for (int shard = 0; shard < shards.getShardCount(); shard++) {
+				argsByShard.put(shard, args.clone());
+			}
+			Object merged = ShardResultMerger.merge(invocation.getMethod(), invocation.getArguments(),
+					executeAll(invocation, argsByShard, true));
+			if (idGetter != null && isFindAllByIds(invocation.getMethod()) && merged instanceof List) {
+				return ShardResultMerger.sortByIds((List<?>) merged, (Iterable<?>) invocation.getArguments()[0], idGetter);
+			}
+			return merged;
+		}
+
+		// findAll(Iterable<ID>) 和 findAll(Iterable<ID>, ExecutorService): 按分片拼接的结果不再是传入的 id 的顺序
+		private static boolean isFindAllByIds(Method method) {
+			Class<?>[] parameterTypes = method.getParameterTypes();
+			return method.getName().equals("findAll") && parameterTypes.length > 0 && parameterTypes[0] == Iterable.class;
+		}
+
+		/**
+		 * 在每个分片上执行一次剩下的拦截器(事务等)和 Repository 方法, 配置了线程池时并行执行
+		 * 返回的结果按分片的顺序排列
+		 * @param ignoreNotFound 为 true 时分片上抛出的 EmptyResultDataAccessException 作为 null 结果, 所有分片都抛出时才抛出
+		 */
+		private List<Object> executeAll(MethodInvocation invocation, Map<Integer, Object[]> argsByShard,
+				boolean ignoreNotFound) throws Throwable {
+			Executor executor = shards.getExecutor();
+			List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+			for (Map.Entry<Integer, Object[]> entry : argsByShard.entrySet()) {
+				FutureTask<Object> task = new FutureTask<Object>(new ShardCall(
+						((ProxyMethodInvocation) invocation).invocableClone(entry.getValue()), entry.getKey()));
+				tasks.add(task);
+				if (executor != null) {
+					executor.execute(task);
+				} else {
+					task.run();
+				}
+			}
+			List<Object> results = new ArrayList<Object>(tasks.size());
+			EmptyResultDataAccessException notFound = null;
+			int missing = 0;
+			for (FutureTask<Object> task : tasks) {
+				try {
+					results.add(task.get());
+				} catch (ExecutionException e) {
+					if (!ignoreNotFound || !(e.getCause() instanceof EmptyResultDataAccessException)) {
+						throw e.getCause();
+					}
+					if (notFound == null) {
+						notFound = (EmptyResultDataAccessException) e.getCause();
+					}
+					missing++;
+					results.add(null);
+				}
+			}
+			if (missing == tasks.size() && notFound != null) {
+				throw notFound;
+			}
+			return results;
+		}
+
+		private void checkNoTransaction(Method method) {
+			if (TransactionSynchronizationManager.isActualTransactionActive()) {
+				throw new IllegalStateException(method + " needs to access all shards and cannot run in a transaction,"
+						+ " call it outside the transaction or use ShardContext to select a shard");
+			}
+		}
+
+		/**
+		 * 调用者的事务使用 LazyConnectionDataSourceProxy 的连接, 第一次访问时才真正连接到分片, 之后不能再换分片
+		 */
+		private void bindToTransaction(int shard) {
+			if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+				return;
+			}
+			Integer bound = (Integer) TransactionSynchronizationManager.getResource(TRANSACTION_SHARD);
+			if (bound == null) {
+				TransactionSynchronizationManager.bindResource(TRANSACTION_SHARD, shard);
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					@Override
+					public void afterCompletion(int status) {
+						TransactionSynchronizationManager.unbindResourceIfPossible(TRANSACTION_SHARD);
+					}
+				});
+			} else if (bound != shard) {
+				throw new IllegalStateException("The transaction is bound to shard " + bound
+						+ " and cannot access shard " + shard);
+			}
+		}
+	}
+
+	private static class ShardCall implements Callable<Object> {
+
+		private final MethodInvocation invocation;
+		private final int shard;
+
+		ShardCall(MethodInvocation invocation, int shard) {
+			this.invocation = invocation;
+			this.shard = shard;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			ShardContext.set(shard);
+			try {
+				return invocation.proceed();
+			} catch (Exception | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new UndeclaredThrowableException(e);
+			} finally {
+				ShardContext.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import org.hibernate.EmptyInterceptor;
+
+/**
+ * 统计当前线程准备的 SQL 语句数量, 供 RepositoryMetrics 计算每次 Repository 调用执行了多少条 SQL
+ * 通过 hibernate.ejb.interceptor 配置, 整个 SessionFactory 共用一个实例
+ */
+public class StatementCountingInterceptor extends EmptyInterceptor {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<long[]> COUNTER = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * 当前线程到目前为止准备的 SQL 语句数量, 调用前后各取一次, 相减即为这次调用的数量
+	 */
+	public static long currentCount() {
+		return COUNTER.get()[0];
+	}
+
+	@Override
+	public String onPrepareStatement(String sql) {
+		COUNTER.get()[0]++;
+		return sql;
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.atguigu.springdata.commonrepositorymethod;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+import org.springframework.util.Assert;
+
+/**
+ * 根据实体的映射信息生成 MySQL 的 INSERT ... ON DUPLICATE KEY UPDATE 语句, 并按列绑定实体的属性值
+ * 包括 id 和所有可以插入的、映射到列上的属性(不包括集合和公式), 值的转换使用属性对应的 Hibernate Type,
+ * 与 Hibernate 自己生成的 INSERT 语句相同(例如 @ManyToOne 的属性绑定的是关联实体的 id)
+ * 有 @Version 时, 插入的记录使用实体上的版本号(为空时使用初始值), 冲突时数据库中的版本号加一, 不检查实体上的版本号
+ */
+class UpsertStatement {
+
+	private final AbstractEntityPersister persister;
+	// @Version 属性在 persister 中的下标, 没有时为 -1
+	private final int versionProperty;
+	// 插入的属性在 persister 中的下标
+	private final List<Integer> properties = new ArrayList<Integer>();
+	private final String columns;
+	private final String placeholders;
+	private final String updates;
+
+	UpsertStatement(AbstractEntityPersister persister, String... updateAttributes) {
+		Assert.isTrue(persister.getIdentifierColumnNames().length == 1,
+				"Composite identifiers are not supported: " + persister.getEntityName());
+		this.persister = persister;
+		this.versionProperty = persister.isVersioned() ? persister.getVersionProperty() : -1;
+
+		List<String> insertColumns = new ArrayList<String>();
+		List<String> updateColumns = new ArrayList<String>();
+		insertColumns.add(persister.getIdentifierColumnNames()[0]);
+		boolean[] insertability = persister.getPropertyInsertability();
+		for (int i = 0; i < persister.getPropertyNames().length; i++) {
+			String[] propertyColumns = persister.getPropertyColumnNames(i);
+			if (!insertability[i] || propertyColumns.length == 0 || Arrays.asList(propertyColumns).contains(null)) {
+				continue;
+			}
+			properties.add(i);
+			insertColumns.addAll(Arrays.asList(propertyColumns));
+			if (i == versionProperty) {
+				continue;
+			}
+			if (updateAttributes.length == 0 || Arrays.asList(updateAttributes).contains(persister.getPropertyNames()[i])) {
+				updateColumns.addAll(Arrays.asList(propertyColumns));
+			}
+		}
+		for (String attribute : updateAttributes) {
+			Assert.isTrue(properties.contains(persister.getPropertyIndex(attribute)),
+					"Attribute " + attribute + " can not be updated by upsert");
+		}
+
+		StringBuilder placeholders = new StringBuilder("(");
+		for (int i = 0; i < insertColumns.size(); i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+		this.placeholders = placeholders.append(')').toString();
+		this.columns = join(insertColumns, "%s");
+
+		// 没有需要修改的列时, 冲突的记录保持不变
+		if (updateColumns.isEmpty() && versionProperty < 0) {
+			updateColumns.add(persister.getIdentifierColumnNames()[0]);
+		}
+		String updates = join(updateColumns, "%1$s = VALUES(%1$s)");
+		if (versionProperty >= 0) {
+			String versionColumn = persister.getVersionColumnName();
+			updates += (updates.isEmpty() ? "" : ", ") + versionColumn + " = " + versionColumn + " + 1";
+		}
+		this.updates = updates;
+	}
+
+	/**
+	 * 一次插入 rows 条记录的语句
+	 */
+	String getSql(int rows) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(persister.getTableName())
+				.append(" (").append(columns).append(") VALUES ");
+		for (int i = 0; i < rows; i++) {
+			sql.append(i == 0 ? "" : ", ").append(placeholders);
+		}
+		return sql.append(" ON DUPLICATE KEY UPDATE ").append(updates).toString();
+	}
+
+	/**
+	 * 从 index 开始绑定一个实体的 id 和属性值
+	 * @return 下一个参数的下标
+	 */
+	int bind(PreparedStatement statement, Object entity, Serializable id, int index, SessionImplementor session)
+			throws SQLException {
+		Type idType = persister.getIdentifierType();
+		idType.nullSafeSet(statement, id, index, session);
+		index += persister.getIdentifierColumnNames().length;
+
+		Object[] values = persister.getPropertyValues(entity);
+		Type[] types = persister.getPropertyTypes();
+		for (int i : properties) {
+			Object value = values[i];
+			if (i == versionProperty && value == null) {
+				value = persister.getVersionType().seed(session);
+			}
+			types[i].nullSafeSet(statement, value, index, session);
+			index += persister.getPropertyColumnNames(i).length;
+		}
+		return index;
+	}
+
+	private static String join(List<String> columns, String format) {
+		StringBuilder joined = new StringBuilder();
+		for (String column : columns) {
+			if (joined.length() > 0) {
+				joined.append(", ");
+			}
+			joined.append(String.format(format, column));
+		}
+		return joined.toString();
+	}
+}
@@ -0,0 +1,59 @@
+package com.atguigu.springdata.datasource;
+
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+
+/**
+ * 读取 HikariCP 连接池的连接数, 供 MonitoredDataSource 使用
+ * HikariCP 是可选的包(见 note.txt), 这里通过反射访问, 编译时不需要它;
+ * MonitoredDataSource 只在类路径上有 HikariDataSource 时才会加载这个类
+ */
+final class HikariPoolAdapter {
+
+    static final String HIKARI_DATA_SOURCE = "com.zaxxer.hikari.HikariDataSource";
+    private static final String HIKARI_POOL_MX_BEAN = "com.zaxxer.hikari.HikariPoolMXBean";
+
+    private static final Class<?> DATA_SOURCE_CLASS;
+    private static final Method GET_POOL;
+    private static final Method GET_ACTIVE_CONNECTIONS;
+    private static final Method GET_IDLE_CONNECTIONS;
+    private static final Method GET_THREADS_AWAITING_CONNECTION;
+
+    static {
+        ClassLoader classLoader = HikariPoolAdapter.class.getClassLoader();
+        DATA_SOURCE_CLASS = ClassUtils.resolveClassName(HIKARI_DATA_SOURCE, classLoader);
+        Class<?> poolClass = ClassUtils.resolveClassName(HIKARI_POOL_MX_BEAN, classLoader);
+        GET_POOL = ClassUtils.getMethod(DATA_SOURCE_CLASS, "getHikariPoolMXBean");
+        GET_ACTIVE_CONNECTIONS = ClassUtils.getMethod(poolClass, "getActiveConnections");
+        GET_IDLE_CONNECTIONS = ClassUtils.getMethod(poolClass, "getIdleConnections");
+        GET_THREADS_AWAITING_CONNECTION = ClassUtils.getMethod(poolClass, "getThreadsAwaitingConnection");
+    }
+
+    private HikariPoolAdapter() {
+    }
+
+    static boolean isHikari(DataSource dataSource) {
+        return DATA_SOURCE_CLASS.isInstance(dataSource);
+    }
+
+    static int getActiveConnections(DataSource dataSource) {
+        return read(dataSource, GET_ACTIVE_CONNECTIONS);
+    }
+
+    static int getIdleConnections(DataSource dataSource) {
+        return read(dataSource, GET_IDLE_CONNECTIONS);
+    }
+
+    static int getThreadsAwaitingConnection(DataSource dataSource) {
+        return read(dataSource, GET_THREADS_AWAITING_CONNECTION);
+    }
+
+    // 连接池在第一次获取连接时才创建, 之前 getHikariPoolMXBean 返回 null
+    private static int read(DataSource dataSource, Method method) {
+        Object pool = ReflectionUtils.invokeMethod(GET_POOL, dataSource);
+        return pool == null ? 0 : (Integer) ReflectionUtils.invokeMethod(method, pool);
+    }
+}
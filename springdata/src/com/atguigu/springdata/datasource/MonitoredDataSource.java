@@ -0,0 +1,134 @@
+package com.atguigu.springdata.datasource;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.ClassUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 包装连接池, 记录获取连接的等待时间, 并读取连接池的活动/空闲连接数
+ * 支持 c3p0 和 HikariCP 两种连接池, 通过 JMX 暴露出来, 用于在压测时确定连接池的大小
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=DataSource,name=dataSource")
+public class MonitoredDataSource extends DelegatingDataSource {
+
+    // HikariCP 是可选的, 没有时不加载 HikariPoolAdapter
+    private static final boolean HIKARI_PRESENT = ClassUtils.isPresent(HikariPoolAdapter.HIKARI_DATA_SOURCE,
+            MonitoredDataSource.class.getClassLoader());
+
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public MonitoredDataSource() {
+    }
+
+    public MonitoredDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return super.getConnection();
+        } finally {
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return super.getConnection(username, password);
+        } finally {
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    private void recordWait(long nanos) {
+        connectionCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+        }
+    }
+
+    @ManagedAttribute(description = "正在使用的连接数")
+    public int getActiveConnections() throws SQLException {
+        DataSource target = getTargetDataSource();
+        if (HIKARI_PRESENT && HikariPoolAdapter.isHikari(target)) {
+            return HikariPoolAdapter.getActiveConnections(target);
+        }
+        if (target instanceof PooledDataSource) {
+            return ((PooledDataSource) target).getNumBusyConnectionsDefaultUser();
+        }
+        return -1;
+    }
+
+    @ManagedAttribute(description = "空闲的连接数")
+    public int getIdleConnections() throws SQLException {
+        DataSource target = getTargetDataSource();
+        if (HIKARI_PRESENT && HikariPoolAdapter.isHikari(target)) {
+            return HikariPoolAdapter.getIdleConnections(target);
+        }
+        if (target instanceof PooledDataSource) {
+            return ((PooledDataSource) target).getNumIdleConnectionsDefaultUser();
+        }
+        return -1;
+    }
+
+    @ManagedAttribute(description = "正在等待获取连接的线程数")
+    public int getThreadsAwaitingConnection() throws SQLException {
+        DataSource target = getTargetDataSource();
+        if (HIKARI_PRESENT && HikariPoolAdapter.isHikari(target)) {
+            return HikariPoolAdapter.getThreadsAwaitingConnection(target);
+        }
+        if (target instanceof PooledDataSource) {
+            return ((PooledDataSource) target).getNumThreadsAwaitingCheckoutDefaultUser();
+        }
+        return -1;
+    }
+
+    @ManagedAttribute(description = "获取连接的次数")
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @ManagedAttribute(description = "获取连接的平均等待时间(微秒)")
+    public long getAverageWaitMicros() {
+        long count = connectionCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / count / 1000;
+    }
+
+    @ManagedAttribute(description = "获取连接的最长等待时间(微秒)")
+    public long getMaxWaitMicros() {
+        return maxWaitNanos.get() / 1000;
+    }
+
+    @ManagedOperation(description = "清空等待时间的统计")
+    public void resetStatistics() {
+        connectionCount.set(0);
+        totalWaitNanos.set(0);
+        maxWaitNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return "MonitoredDataSource [active=" + getActiveConnections() + ", idle=" + getIdleConnections()
+                    + ", awaiting=" + getThreadsAwaitingConnection() + ", connections=" + getConnectionCount()
+                    + ", avgWait=" + getAverageWaitMicros() + "us, maxWait=" + getMaxWaitMicros() + "us]";
+        } catch (SQLException e) {
+            return "MonitoredDataSource [" + e + "]";
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.atguigu.springdata.datasource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 读写分离: 只读事务(例如 SimpleJpaRepository 的 findAll, 以及 Repository 中声明的查询方法)使用从库, 其他的使用主库
+ *
+ * 注意:
+ * 1. JpaTransactionManager 在开启事务时就会获取连接, 这时还没有设置事务的只读标记,
+ *    所以必须用 LazyConnectionDataSourceProxy 包装, 等到执行第一条 SQL 时才真正获取连接(见 applicationContext.xml)
+ * 2. 写事务提交后的 stickinessMillis 毫秒内, 当前线程的只读事务仍然使用主库, 避免因为从库的复制延迟读不到刚写入的数据
+ * 3. 不在事务中执行的查询使用主库
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=DataSource,name=routingDataSource")
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+
+    public enum LoadBalancing {
+        // 轮流使用每个从库
+        ROUND_ROBIN,
+        // 使用正在使用的连接数最少的从库, 从库需要用 MonitoredDataSource 包装, 否则退化为轮询
+        LEAST_LOADED
+    }
+
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica";
+
+    // 当前线程最近一次提交写事务的时间
+    private static final ThreadLocal<Long> LAST_WRITE = new ThreadLocal<Long>();
+
+    private DataSource primary;
+    private List<DataSource> replicas = new ArrayList<DataSource>();
+    private LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+    private long stickinessMillis = 1000;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong primaryCount = new AtomicLong();
+    private final AtomicLong replicaCount = new AtomicLong();
+    private final AtomicLong stickyCount = new AtomicLong();
+
+    public void setPrimary(DataSource primary) {
+        this.primary = primary;
+    }
+
+    public void setReplicas(List<DataSource> replicas) {
+        this.replicas = replicas;
+    }
+
+    public void setLoadBalancing(LoadBalancing loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    public void setStickinessMillis(long stickinessMillis) {
+        this.stickinessMillis = stickinessMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.notNull(primary, "primary is required");
+        Map<Object, Object> targetDataSources = new HashMap<Object, Object>();
+        targetDataSources.put(PRIMARY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            targetDataSources.put(REPLICA + i, replicas.get(i));
+        }
+        setTargetDataSources(targetDataSources);
+        setDefaultTargetDataSource(primary);
+        super.afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly() && !replicas.isEmpty()) {
+            if (isSticky()) {
+                stickyCount.incrementAndGet();
+                primaryCount.incrementAndGet();
+                return PRIMARY;
+            }
+            replicaCount.incrementAndGet();
+            return REPLICA + selectReplica();
+        }
+        primaryCount.incrementAndGet();
+        if (TransactionSynchronizationManager.isSynchronizationActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    markWrite();
+                }
+            });
+        }
+        return PRIMARY;
+    }
+
+    private boolean isSticky() {
+        Long lastWrite = LAST_WRITE.get();
+        if (lastWrite == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastWrite < stickinessMillis) {
+            return true;
+        }
+        LAST_WRITE.remove();
+        return false;
+    }
+
+    private int selectReplica() {
+        int size = replicas.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        if (loadBalancing != LoadBalancing.LEAST_LOADED || size == 1) {
+            return start;
+        }
+        // 从轮询的位置开始找, 连接数相同时也能把请求分散开
+        int selected = start;
+        int minActive = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            int active = activeConnections(replicas.get(index));
+            if (active < 0) {
+                return start;
+            }
+            if (active < minActive) {
+                minActive = active;
+                selected = index;
+            }
+        }
+        return selected;
+    }
+
+    private static int activeConnections(DataSource dataSource) {
+        if (!(dataSource instanceof MonitoredDataSource)) {
+            return -1;
+        }
+        try {
+            return ((MonitoredDataSource) dataSource).getActiveConnections();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 当前线程的只读事务是否因为刚写入过数据而使用主库
+     * 这时查到的是从库可能还看不到的数据, 应用内的缓存(例如 @NearCache)不应该读取或保存这时的查询结果,
+     * 否则粘滞期过后其他读取从库的调用也会拿到这份结果, 或者刚写入的线程读到缓存中的旧数据
+     */
+    public boolean isStickyToPrimary() {
+        return !replicas.isEmpty() && isSticky();
+    }
+
+    /**
+     * 记录当前线程刚刚写入了数据, 之后 stickinessMillis 毫秒内的读操作使用主库
+     * 写事务提交后会自动调用, 不通过 Spring 事务写入数据时可以手动调用
+     */
+    public static void markWrite() {
+        LAST_WRITE.set(System.currentTimeMillis());
+    }
+
+    @ManagedAttribute(description = "使用主库的次数")
+    public long getPrimaryCount() {
+        return primaryCount.get();
+    }
+
+    @ManagedAttribute(description = "使用从库的次数")
+    public long getReplicaCount() {
+        return replicaCount.get();
+    }
+
+    @ManagedAttribute(description = "只读事务因为刚写入过数据而使用主库的次数")
+    public long getStickyCount() {
+        return stickyCount.get();
+    }
+
+    @ManagedOperation(description = "清空统计信息")
+    public void resetStatistics() {
+        primaryCount.set(0);
+        replicaCount.set(0);
+        stickyCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ReadWriteRoutingDataSource [replicas=" + replicas.size() + ", loadBalancing=" + loadBalancing
+                + ", primary=" + getPrimaryCount() + ", replica=" + getReplicaCount() + ", sticky="
+                + getStickyCount() + "]";
+    }
+}
@@ -0,0 +1,83 @@
+package com.atguigu.springdata.datasource;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 当前线程使用的分片, 由 ShardRoutingDataSource 读取
+ *
+ * 一般不需要手动设置: Repository 方法按 @ShardKey 自动选择分片(见 ShardingPostProcessor);
+ * 按租户等不在参数中的分片键访问时, 用 callOn 指定分片, 期间所有的 Repository 调用都只访问这个分片
+ */
+public final class ShardContext {
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<Integer>();
+
+    private ShardContext() {
+    }
+
+    public static Integer get() {
+        return CURRENT.get();
+    }
+
+    public static void set(Integer shard) {
+        if (shard == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(shard);
+        }
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    /**
+     * 把当前线程的分片带到线程池中执行的任务里: ThreadLocal 不会被其他线程继承,
+     * 否则任务中的查询都会落到第 0 个分片上. 任务结束后恢复执行线程原来的分片
+     */
+    public static <T> Callable<T> propagate(final Callable<T> callable) {
+        final Integer shard = get();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                Integer previous = get();
+                set(shard);
+                try {
+                    return callable.call();
+                } finally {
+                    set(previous);
+                }
+            }
+        };
+    }
+
+    public static Runnable propagate(final Runnable runnable) {
+        final Integer shard = get();
+        return new Runnable() {
+            @Override
+            public void run() {
+                Integer previous = get();
+                set(shard);
+                try {
+                    runnable.run();
+                } finally {
+                    set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * 在指定的分片上执行, 结束后恢复原来的分片
+     * 如果要在事务中执行, 事务需要在 callable 中开启, 事务开启后不能再切换分片
+     */
+    public static <T> T callOn(int shard, Callable<T> callable) throws Exception {
+        Integer previous = get();
+        set(shard);
+        try {
+            return callable.call();
+        } finally {
+            set(previous);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.atguigu.springdata.datasource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分库: 按 ShardContext 中的分片选择数据源, 没有指定分片时使用第 0 个分片
+ * Repository 方法的路由和跨分片查询的合并见 ShardingPostProcessor
+ *
+ * 注意:
+ * 1. 和读写分离一样, 必须用 LazyConnectionDataSourceProxy 包装, 执行第一条 SQL 时才获取连接,
+ *    这时 Repository 已经根据分片键设置好了分片(见 applicationContext-sharding.xml)
+ * 2. 所有分片共用一个 EntityManagerFactory, 启动时 hbm2ddl 只在第 0 个分片上执行, 其他分片的表结构需要另外创建
+ * 3. 同一条查询在不同的分片上结果不同, 不能使用查询缓存; 实体的二级缓存要求 id 在所有分片中唯一, 见 initializeIdRanges
+ * 4. 没有标注 @ShardKey 的实体(例如 Address)不分片, 都在第 0 个分片中
+ */
+@ManagedResource(objectName = "com.atguigu.springdata:type=DataSource,name=shardRoutingDataSource")
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final int DEFAULT_SHARD = 0;
+
+    private List<DataSource> shards = new ArrayList<DataSource>();
+    private Executor executor;
+
+    private AtomicLongArray routedCounts;
+    private final AtomicLong defaultCount = new AtomicLong();
+
+    public void setShards(List<DataSource> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * 跨分片查询时并行访问各个分片的线程池, 不设置时依次访问
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.notEmpty(shards, "shards is required");
+        Map<Object, Object> targetDataSources = new HashMap<Object, Object>();
+        for (int i = 0; i < shards.size(); i++) {
+            targetDataSources.put(i, shards.get(i));
+        }
+        setTargetDataSources(targetDataSources);
+        setDefaultTargetDataSource(shards.get(DEFAULT_SHARD));
+        routedCounts = new AtomicLongArray(shards.size());
+        super.afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        Integer shard = ShardContext.get();
+        if (shard == null) {
+            defaultCount.incrementAndGet();
+            shard = DEFAULT_SHARD;
+        }
+        Assert.isTrue(shard >= 0 && shard < shards.size(), "No such shard: " + shard);
+        routedCounts.incrementAndGet(shard);
+        return shard;
+    }
+
+    /**
+     * 分片键所在的分片: 按 hashCode 取模, 字符串的 hashCode 是固定的, 不同的 JVM 中结果相同
+     * 分片的数量改变后大部分数据需要迁移
+     */
+    public int shardFor(Object key) {
+        Assert.notNull(key, "Shard key must not be null");
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.size();
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public DataSource getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * 为每个分片的 TABLE 生成器设置不同的起始值, 第 i 个分片的 id 从 i * (Integer.MAX_VALUE / 分片数) + 1 开始,
+     * 这样 id 在所有分片中唯一, 合并后的结果和二级缓存中不会出现 id 相同的两个实体
+     * 新加分片或者新建库时执行一次, 已经有值的分片不会修改
+     */
+    public void initializeIdRanges(String table, String pkColumn, String valueColumn, String pkValue) {
+        long rangeSize = Integer.MAX_VALUE / shards.size();
+        for (int i = 0; i < shards.size(); i++) {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(shards.get(i));
+            int existing = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table + " WHERE " + pkColumn + " = ?",
+                    Integer.class, pkValue);
+            if (existing == 0) {
+                jdbcTemplate.update("INSERT INTO " + table + " (" + pkColumn + ", " + valueColumn + ") VALUES (?, ?)",
+                        pkValue, i * rangeSize + 1);
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "每个分片获取连接的次数")
+    public String getRoutedCounts() {
+        return routedCounts.toString();
+    }
+
+    @ManagedAttribute(description = "没有指定分片, 使用第 0 个分片的次数")
+    public long getDefaultCount() {
+        return defaultCount.get();
+    }
+
+    @ManagedOperation(description = "清空统计信息")
+    public void resetStatistics() {
+        for (int i = 0; i < routedCounts.length(); i++) {
+            routedCounts.set(i, 0);
+        }
+        defaultCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardRoutingDataSource [shards=" + shards.size() + ", routed=" + getRoutedCounts()
+                + ", default=" + getDefaultCount() + "]";
+    }
+}
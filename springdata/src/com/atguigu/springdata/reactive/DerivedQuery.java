@@ -0,0 +1,242 @@
+package com.atguigu.springdata.reactive;
+
+import org.hibernate.MappingException;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.reactivestreams.Publisher;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.repository.query.parser.Part;
+import org.springframework.data.repository.query.parser.PartTree;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+/**
+ * 按 SpringData 的方法名规范生成 SQL 的查询, 方法名由 PartTree 解析, 和 JPA 的 Repository 相同
+ * 支持的条件: =, <>, <, <=, >, >=, Before, After, Between, IsNull, IsNotNull, Like, NotLike,
+ * StartingWith, EndingWith, Containing, In, NotIn, True, False; 支持 OrderBy 和 countBy
+ * 属性路径只支持本表的列和多对一关联的 id(例如 Address_Id), 不支持需要 JOIN 的条件
+ *
+ * 创建 Repository 时就解析方法名, 不支持的方法名在启动时报错
+ */
+class DerivedQuery implements ReactiveQuery {
+
+    private static final Pattern COUNT_PREFIX = Pattern.compile("^count(\\p{Lu}.*?)??By");
+
+    private final DataSource dataSource;
+    private final Executor executor;
+    private final int fetchSize;
+    private final RowMapper<?> rowMapper;
+    private final String select;
+    private final List<List<Criterion>> orGroups = new ArrayList<List<Criterion>>();
+    private final String orderBy;
+
+    DerivedQuery(Method method, EntityRowMapper<?> entityRowMapper, AbstractEntityPersister persister,
+                 DataSource dataSource, Executor executor, int fetchSize) {
+        this.dataSource = dataSource;
+        this.executor = executor;
+        this.fetchSize = fetchSize;
+        // 这个版本的 PartTree 不支持 countBy, 把前缀换成 find 后再解析
+        String name = method.getName();
+        boolean count = COUNT_PREFIX.matcher(name).find();
+        PartTree tree = new PartTree(count ? "find" + name.substring("count".length()) : name,
+                entityRowMapper.getEntityClass());
+        if (count) {
+            this.rowMapper = new SingleColumnRowMapper<Long>(Long.class);
+            this.select = "SELECT COUNT(*) FROM " + entityRowMapper.getTableName();
+        } else {
+            this.rowMapper = entityRowMapper;
+            this.select = "SELECT " + entityRowMapper.getSelectColumns() + " FROM " + entityRowMapper.getTableName();
+        }
+
+        int argument = 0;
+        for (PartTree.OrPart orPart : tree) {
+            List<Criterion> criteria = new ArrayList<Criterion>();
+            for (Part part : orPart) {
+                criteria.add(new Criterion(column(persister, part.getProperty().toDotPath()), part.getType(), argument));
+                argument += part.getNumberOfArguments();
+            }
+            orGroups.add(criteria);
+        }
+        if (argument != method.getParameterTypes().length) {
+            throw new IllegalArgumentException("Method " + method + " expects " + argument + " parameters");
+        }
+
+        StringBuilder orderBy = new StringBuilder();
+        Sort sort = tree.getSort();
+        if (sort != null && !count) {
+            for (Sort.Order order : sort) {
+                orderBy.append(orderBy.length() == 0 ? " ORDER BY " : ", ")
+                        .append(column(persister, order.getProperty())).append(' ').append(order.getDirection().name());
+            }
+        }
+        this.orderBy = orderBy.toString();
+    }
+
+    private static String column(AbstractEntityPersister persister, String path) {
+        try {
+            String[] columns = persister.getPropertyColumnNames(path);
+            if (columns.length == 1) {
+                return columns[0];
+            }
+        } catch (MappingException e) {
+            // 需要 JOIN 的属性路径
+        }
+        throw new UnsupportedOperationException("Property " + path + " of " + persister.getEntityName()
+                + " is not mapped to a single column of " + persister.getTableName());
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Publisher<?> execute(Object[] arguments) {
+        List<Object> parameters = new ArrayList<Object>();
+        String sql = createSql(arguments == null ? new Object[0] : arguments, parameters);
+        return new JdbcPublisher(dataSource, executor, sql, parameters, rowMapper, fetchSize);
+    }
+
+    String createSql(Object[] arguments, List<Object> parameters) {
+        StringBuilder sql = new StringBuilder(select);
+        if (!orGroups.isEmpty() && !orGroups.get(0).isEmpty()) {
+            sql.append(" WHERE ");
+            for (int i = 0; i < orGroups.size(); i++) {
+                if (i > 0) {
+                    sql.append(" OR ");
+                }
+                List<Criterion> criteria = orGroups.get(i);
+                sql.append(orGroups.size() > 1 && criteria.size() > 1 ? "(" : "");
+                for (int j = 0; j < criteria.size(); j++) {
+                    if (j > 0) {
+                        sql.append(" AND ");
+                    }
+                    criteria.get(j).appendTo(sql, arguments, parameters);
+                }
+                sql.append(orGroups.size() > 1 && criteria.size() > 1 ? ")" : "");
+            }
+        }
+        return sql.append(orderBy).toString();
+    }
+
+    private static class Criterion {
+        private final String column;
+        private final Part.Type type;
+        private final int argument;
+
+        Criterion(String column, Part.Type type, int argument) {
+            this.column = column;
+            this.type = type;
+            this.argument = argument;
+            // 提前检查, 不支持的条件在创建 Repository 时报错
+            appendTo(new StringBuilder(), null, null);
+        }
+
+        void appendTo(StringBuilder sql, Object[] arguments, List<Object> parameters) {
+            sql.append(column);
+            switch (type) {
+                case SIMPLE_PROPERTY:
+                    if (arguments != null && arguments[argument] == null) {
+                        sql.append(" IS NULL");
+                    } else {
+                        bind(sql, " = ?", arguments, parameters, argument(arguments));
+                    }
+                    break;
+                case NEGATING_SIMPLE_PROPERTY:
+                    bind(sql, " <> ?", arguments, parameters, argument(arguments));
+                    break;
+                case LESS_THAN:
+                case BEFORE:
+                    bind(sql, " < ?", arguments, parameters, argument(arguments));
+                    break;
+                case LESS_THAN_EQUAL:
+                    bind(sql, " <= ?", arguments, parameters, argument(arguments));
+                    break;
+                case GREATER_THAN:
+                case AFTER:
+                    bind(sql, " > ?", arguments, parameters, argument(arguments));
+                    break;
+                case GREATER_THAN_EQUAL:
+                    bind(sql, " >= ?", arguments, parameters, argument(arguments));
+                    break;
+                case BETWEEN:
+                    bind(sql, " BETWEEN ? AND ?", arguments, parameters, argument(arguments),
+                            arguments == null ? null : arguments[argument + 1]);
+                    break;
+                case IS_NULL:
+                    sql.append(" IS NULL");
+                    break;
+                case IS_NOT_NULL:
+                    sql.append(" IS NOT NULL");
+                    break;
+                case LIKE:
+                    bind(sql, " LIKE ?", arguments, parameters, argument(arguments));
+                    break;
+                case NOT_LIKE:
+                    bind(sql, " NOT LIKE ?", arguments, parameters, argument(arguments));
+                    break;
+                case STARTING_WITH:
+                    bind(sql, " LIKE ?", arguments, parameters, argument(arguments) + "%");
+                    break;
+                case ENDING_WITH:
+                    bind(sql, " LIKE ?", arguments, parameters, "%" + argument(arguments));
+                    break;
+                case CONTAINING:
+                    bind(sql, " LIKE ?", arguments, parameters, "%" + argument(arguments) + "%");
+                    break;
+                case IN:
+                case NOT_IN:
+                    appendIn(sql, arguments, parameters);
+                    break;
+                case TRUE:
+                    bind(sql, " = ?", arguments, parameters, Boolean.TRUE);
+                    break;
+                case FALSE:
+                    bind(sql, " = ?", arguments, parameters, Boolean.FALSE);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unsupported keyword " + type + " on " + column);
+            }
+        }
+
+        private Object argument(Object[] arguments) {
+            return arguments == null ? null : arguments[argument];
+        }
+
+        private static void bind(StringBuilder sql, String condition, Object[] arguments, List<Object> parameters,
+                                 Object... values) {
+            sql.append(condition);
+            if (arguments != null) {
+                parameters.addAll(Arrays.asList(values));
+            }
+        }
+
+        private void appendIn(StringBuilder sql, Object[] arguments, List<Object> parameters) {
+            String keyword = type == Part.Type.IN ? " IN (" : " NOT IN (";
+            if (arguments == null) {
+                sql.append(keyword).append("?)");
+                return;
+            }
+            Object value = arguments[argument];
+            Collection<?> values = value instanceof Collection ? (Collection<?>) value
+                    : value instanceof Object[] ? Arrays.asList((Object[]) value) : Arrays.asList(value);
+            if (values.isEmpty()) {
+                // IN () 不是合法的 SQL
+                sql.setLength(sql.length() - column.length());
+                sql.append(type == Part.Type.IN ? "1 = 0" : "1 = 1");
+                return;
+            }
+            sql.append(keyword);
+            int i = 0;
+            for (Object element : values) {
+                sql.append(i++ > 0 ? ", ?" : "?");
+                parameters.add(element);
+            }
+            sql.append(')');
+        }
+    }
+}
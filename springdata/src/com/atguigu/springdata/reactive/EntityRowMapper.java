@@ -0,0 +1,121 @@
+package com.atguigu.springdata.reactive;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按 Hibernate 的映射信息把一行数据转换为实体, 不经过 EntityManager, 得到的实体不受管理
+ * 只支持映射到一列的属性; 多对一的关联只创建一个设置了 id 的实例, 不查询关联的实体
+ */
+class EntityRowMapper<T> implements RowMapper<T> {
+
+    private final Class<T> entityClass;
+    private final String tableName;
+    private final List<ColumnMapping> mappings = new ArrayList<ColumnMapping>();
+
+    @SuppressWarnings("unchecked")
+    EntityRowMapper(SessionFactoryImplementor sessionFactory, AbstractEntityPersister persister) {
+        this.entityClass = (Class<T>) persister.getMappedClass();
+        this.tableName = persister.getTableName();
+        mappings.add(new ColumnMapping(persister.getIdentifierPropertyName(), persister.getIdentifierColumnNames()[0],
+                propertyType(entityClass, persister.getIdentifierPropertyName()), null, null));
+        String[] propertyNames = persister.getPropertyNames();
+        Type[] propertyTypes = persister.getPropertyTypes();
+        for (int i = 0; i < propertyNames.length; i++) {
+            String[] columns = persister.getPropertyColumnNames(i);
+            if (columns.length != 1) {
+                continue;
+            }
+            Type type = propertyTypes[i];
+            if (type.isCollectionType()) {
+                continue;
+            }
+            if (type instanceof EntityType) {
+                AbstractEntityPersister associated = (AbstractEntityPersister) sessionFactory.getEntityPersister(
+                        ((EntityType) type).getAssociatedEntityName(sessionFactory));
+                String idProperty = associated.getIdentifierPropertyName();
+                mappings.add(new ColumnMapping(propertyNames[i], columns[0],
+                        propertyType(associated.getMappedClass(), idProperty), associated.getMappedClass(), idProperty));
+            } else {
+                mappings.add(new ColumnMapping(propertyNames[i], columns[0],
+                        propertyType(entityClass, propertyNames[i]), null, null));
+            }
+        }
+    }
+
+    private static Class<?> propertyType(Class<?> beanClass, String propertyName) {
+        return BeanUtils.getPropertyDescriptor(beanClass, propertyName).getPropertyType();
+    }
+
+    Class<T> getEntityClass() {
+        return entityClass;
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * SELECT 的列, 顺序和 mapRow 读取的顺序相同
+     */
+    String getSelectColumns() {
+        StringBuilder columns = new StringBuilder();
+        for (ColumnMapping mapping : mappings) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append(mapping.column);
+        }
+        return columns.toString();
+    }
+
+    @Override
+    public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+        T entity = BeanUtils.instantiate(entityClass);
+        BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(entity);
+        for (int i = 0; i < mappings.size(); i++) {
+            ColumnMapping mapping = mappings.get(i);
+            Object value = JdbcUtils.getResultSetValue(rs, i + 1, mapping.valueType);
+            if (value == null) {
+                continue;
+            }
+            if (mapping.associatedClass != null) {
+                Object associated = BeanUtils.instantiate(mapping.associatedClass);
+                PropertyAccessorFactory.forBeanPropertyAccess(associated).setPropertyValue(mapping.associatedIdProperty, value);
+                value = associated;
+            }
+            wrapper.setPropertyValue(mapping.property, value);
+        }
+        return entity;
+    }
+
+    private static class ColumnMapping {
+        private final String property;
+        private final String column;
+        // 从 ResultSet 中读取的值的类型, 关联属性是关联实体的 id 的类型
+        private final Class<?> valueType;
+        private final Class<?> associatedClass;
+        private final String associatedIdProperty;
+
+        ColumnMapping(String property, String column, Class<?> valueType, Class<?> associatedClass,
+                      String associatedIdProperty) {
+            this.property = property;
+            this.column = column;
+            this.valueType = valueType;
+            this.associatedClass = associatedClass;
+            this.associatedIdProperty = associatedIdProperty;
+        }
+    }
+}
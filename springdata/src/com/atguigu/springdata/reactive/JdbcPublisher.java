@@ -0,0 +1,206 @@
+package com.atguigu.springdata.reactive;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 执行一条 SQL, 按订阅者请求的数量逐行读取结果(背压)
+ *
+ * 1. 每次订阅执行一次查询, 第一次 request 时才获取连接并执行
+ * 2. JDBC 是阻塞的, 查询和读取都在 executor 的线程中执行, 调用 subscribe / request 的线程不会被阻塞
+ * 3. 已经读取的数量达到请求的数量后暂停读取, 释放线程, 但游标和连接保持打开, 直到读完、出错或 cancel,
+ *    所以应使用单独的、有上限和获取超时的连接池(见 applicationContext.xml 中的 reactiveDataSource)
+ *    数据库每次返回 fetchSize 行(MySQL 需要在 URL 中加上 useCursorFetch=true, 否则会一次读取全部结果, 见 reactive.jdbcUrl)
+ * 4. 同一个订阅的信号由 wip 计数串行化, 同一时间只有一个线程调用订阅者的方法
+ */
+class JdbcPublisher<T> implements Publisher<T> {
+
+    private final DataSource dataSource;
+    private final Executor executor;
+    private final String sql;
+    private final List<Object> parameters;
+    private final RowMapper<T> rowMapper;
+    private final int fetchSize;
+
+    JdbcPublisher(DataSource dataSource, Executor executor, String sql, List<Object> parameters,
+                  RowMapper<T> rowMapper, int fetchSize) {
+        this.dataSource = dataSource;
+        this.executor = executor;
+        this.sql = sql;
+        this.parameters = parameters;
+        this.rowMapper = rowMapper;
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        subscriber.onSubscribe(new JdbcSubscription(subscriber));
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcPublisher [" + sql + ", " + parameters + "]";
+    }
+
+    private class JdbcSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        // 以下字段只在 drain 中访问, 由 wip 保证同一时间只有一个线程
+        private Connection connection;
+        private PreparedStatement statement;
+        private ResultSet resultSet;
+        private int rowNum;
+        private boolean done;
+
+        JdbcSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be positive (rule 3.9): " + n);
+            } else {
+                addRequested(n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void addRequested(long n) {
+            for (;;) {
+                long current = requested.get();
+                long next = current + n;
+                // 累计超过 Long.MAX_VALUE 时视为无限
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+                if (requested.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() != 0) {
+                // 正在执行的 drain 会处理这次的信号
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // 线程池已满, 在当前线程中结束这个订阅
+                error = e;
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                drain();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            }
+            if (cancelled) {
+                finish();
+                return;
+            }
+            if (error != null) {
+                finish();
+                subscriber.onError(error);
+                return;
+            }
+            try {
+                for (;;) {
+                    long r = requested.get();
+                    long emitted = 0;
+                    while (emitted != r) {
+                        if (cancelled) {
+                            finish();
+                            return;
+                        }
+                        if (resultSet == null) {
+                            open();
+                        }
+                        if (!resultSet.next()) {
+                            finish();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        subscriber.onNext(rowMapper.mapRow(resultSet, rowNum++));
+                        emitted++;
+                    }
+                    // 请求的数量都已经发出, 没有新的请求时暂停, 等待下一次 request
+                    if (emitted == 0 || requested.addAndGet(-emitted) == 0) {
+                        return;
+                    }
+                }
+            } catch (Throwable e) {
+                // onComplete 中抛出的异常不再通知订阅者, 已经结束的订阅不能再发出信号
+                if (!done) {
+                    finish();
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        private void open() throws Exception {
+            connection = dataSource.getConnection();
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            for (int i = 0; i < parameters.size(); i++) {
+                // 和 JdbcTemplate 一样处理参数的类型, 例如把 java.util.Date 转换为 Timestamp
+                StatementCreatorUtils.setParameterValue(statement, i + 1, SqlTypeValue.TYPE_UNKNOWN, parameters.get(i));
+            }
+            resultSet = statement.executeQuery();
+        }
+
+        private void finish() {
+            done = true;
+            JdbcUtils.closeResultSet(resultSet);
+            JdbcUtils.closeStatement(statement);
+            JdbcUtils.closeConnection(connection);
+            resultSet = null;
+            statement = null;
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.atguigu.springdata.reactive;
+
+import com.atguigu.springdata.Address;
+import org.reactivestreams.Publisher;
+
+/**
+ * 响应式的 AddressRepository
+ */
+public interface ReactiveAddressRepository extends ReactiveRepository<Address, Integer> {
+
+    // WHERE city = ?
+    Publisher<Address> getByCity(String city);
+}
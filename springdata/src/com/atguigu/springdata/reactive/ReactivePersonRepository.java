@@ -0,0 +1,37 @@
+package com.atguigu.springdata.reactive;
+
+import com.atguigu.springdata.Person;
+import org.reactivestreams.Publisher;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 响应式的 PersonRepository: 查询方法和 PersonRepository 中的同名方法相同, 返回 Publisher
+ * 使用 Project Reactor 时可以用 Mono.from / Flux.from 包装
+ *
+ * 返回的 Person 不受 EntityManager 管理, address 只设置了 id
+ */
+public interface ReactivePersonRepository extends ReactiveRepository<Person, Integer> {
+
+    // WHERE lastName = ?
+    Publisher<Person> getByLastName(String lastName);
+
+    // WHERE email = ?
+    Publisher<Person> getByEmail(String email);
+
+    // WHERE lastName LIKE ?% AND id < ?
+    Publisher<Person> getByLastNameStartingWithAndIdLessThan(String lastName, Integer id);
+
+    // WHERE lastName LIKE %? AND id < ?
+    Publisher<Person> getByLastNameEndingWithAndIdLessThan(String lastName, Integer id);
+
+    // WHERE email IN (?,?,?) OR birth < ?
+    Publisher<Person> getByEmailInOrBirthLessThan(List<String> emails, Date date);
+
+    // WHERE ADDRESS_ID > ?
+    Publisher<Person> getByAddress_IdGreaterThan(Integer id);
+
+    // SELECT COUNT(*) ... WHERE lastName LIKE ?%
+    Publisher<Long> countByLastNameStartingWith(String lastName);
+}
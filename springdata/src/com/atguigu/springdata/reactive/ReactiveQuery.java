@@ -0,0 +1,11 @@
+package com.atguigu.springdata.reactive;
+
+import org.reactivestreams.Publisher;
+
+/**
+ * 响应式 Repository 中的一个方法, 每次调用返回一个新的 Publisher, 订阅后才执行查询
+ */
+interface ReactiveQuery {
+
+    Publisher<?> execute(Object[] arguments);
+}
@@ -0,0 +1,19 @@
+package com.atguigu.springdata.reactive;
+
+import org.reactivestreams.Publisher;
+
+/**
+ * 响应式 Repository 的公共方法, 所有方法都立即返回, 订阅并请求数据后才执行查询
+ *
+ * 不继承 SpringData 的 Repository 接口, 否则会被 jpa:repositories 扫描为 JPA 的 Repository
+ * 子接口中按 SpringData 的规范声明查询方法(见 ReactivePersonRepository), 由 ReactiveRepositoryFactoryBean 创建实现
+ */
+public interface ReactiveRepository<T, ID> {
+
+    // 0 或 1 个元素
+    Publisher<T> findOne(ID id);
+
+    Publisher<T> findAll();
+
+    Publisher<Long> count();
+}
@@ -0,0 +1,152 @@
+package com.atguigu.springdata.reactive;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.GenericTypeResolver;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * 创建 ReactiveRepository 子接口的实现(JDK 动态代理), 用法见 applicationContext.xml
+ *
+ * 1. 表名、列名取自 Hibernate 的映射信息, 和 JPA 的 Repository 使用同一套表结构
+ * 2. 查询直接通过 JDBC 执行, 不经过 EntityManager, 不使用一级缓存和二级缓存, 也不参与 Spring 的事务
+ * 3. JDBC 是阻塞的, 由 executor 执行, 订阅者的回调也在 executor 的线程中执行; 见 JdbcPublisher
+ */
+public class ReactiveRepositoryFactoryBean<T extends ReactiveRepository<?, ?>> implements FactoryBean<T>, InitializingBean {
+
+    private Class<T> repositoryInterface;
+    private EntityManagerFactory entityManagerFactory;
+    private DataSource dataSource;
+    private Executor executor;
+    private int fetchSize = 100;
+
+    private T repository;
+
+    public void setRepositoryInterface(Class<T> repositoryInterface) {
+        this.repositoryInterface = repositoryInterface;
+    }
+
+    public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    // 数据库每次返回的行数
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.notNull(repositoryInterface, "repositoryInterface is required");
+        Assert.notNull(entityManagerFactory, "entityManagerFactory is required");
+        Assert.notNull(dataSource, "dataSource is required");
+        Assert.notNull(executor, "executor is required");
+
+        Class<?>[] typeArguments = GenericTypeResolver.resolveTypeArguments(repositoryInterface, ReactiveRepository.class);
+        Assert.notNull(typeArguments, "Unable to resolve the domain type of " + repositoryInterface);
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+                ((HibernateEntityManagerFactory) entityManagerFactory).getSessionFactory();
+        AbstractEntityPersister persister = (AbstractEntityPersister)
+                sessionFactory.getEntityPersister(typeArguments[0].getName());
+        EntityRowMapper<Object> rowMapper = new EntityRowMapper<Object>(sessionFactory, persister);
+
+        String selectAll = "SELECT " + rowMapper.getSelectColumns() + " FROM " + rowMapper.getTableName();
+        final Map<Method, ReactiveQuery> queries = new HashMap<Method, ReactiveQuery>();
+        for (Method method : repositoryInterface.getMethods()) {
+            if (method.getDeclaringClass() != ReactiveRepository.class) {
+                queries.put(method, new DerivedQuery(method, rowMapper, persister, dataSource, executor, fetchSize));
+            } else if (method.getName().equals("findOne")) {
+                queries.put(method, new StaticQuery(selectAll + " WHERE " + persister.getIdentifierColumnNames()[0]
+                        + " = ?", rowMapper));
+            } else if (method.getName().equals("findAll")) {
+                queries.put(method, new StaticQuery(selectAll, rowMapper));
+            } else if (method.getName().equals("count")) {
+                queries.put(method, new StaticQuery("SELECT COUNT(*) FROM " + rowMapper.getTableName(),
+                        new SingleColumnRowMapper<Long>(Long.class)));
+            } else {
+                throw new UnsupportedOperationException(method.toString());
+            }
+        }
+
+        repository = repositoryInterface.cast(Proxy.newProxyInstance(ClassUtils.getDefaultClassLoader(),
+                new Class<?>[] {repositoryInterface}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return invokeObjectMethod(proxy, method, args);
+                        }
+                        return queries.get(method).execute(args);
+                    }
+                }));
+    }
+
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return "Reactive repository for " + repositoryInterface.getName();
+    }
+
+    @Override
+    public T getObject() {
+        return repository;
+    }
+
+    @Override
+    public Class<?> getObjectType() {
+        return repositoryInterface;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+
+    // findOne, findAll, count 这样 SQL 固定的查询
+    private class StaticQuery implements ReactiveQuery {
+        private final String sql;
+        private final RowMapper<?> rowMapper;
+
+        StaticQuery(String sql, RowMapper<?> rowMapper) {
+            this.sql = sql;
+            this.rowMapper = rowMapper;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public Publisher<?> execute(Object[] arguments) {
+            List<Object> parameters = arguments == null ? Collections.<Object>emptyList() : Arrays.asList(arguments);
+            return new JdbcPublisher(dataSource, executor, sql, parameters, rowMapper, fetchSize);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.atguigu.springdata.retry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.hibernate.StaleStateException;
+import org.springframework.core.Ordered;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.OptimisticLockException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 处理 @RetryOnOptimisticLock: 方法因为乐观锁冲突失败时, 等待一段时间后重新执行
+ *
+ * 注意:
+ * 1. 这个切面的优先级最高, 在事务的外面执行, 所以每次重试都是一个新的事务
+ * 2. 调用时已经在事务中的话, 冲突后外面的事务已经被标记为回滚, 重试没有意义, 这时不重试
+ * 3. 等待时间加了随机的抖动, 避免冲突的几个线程同时重试再次冲突
+ */
+@Aspect
+@Component
+@ManagedResource(objectName = "com.atguigu.springdata:type=OptimisticLockRetry")
+public class OptimisticLockRetryAspect implements Ordered {
+
+    private static final Log LOG = LogFactory.getLog(OptimisticLockRetryAspect.class);
+
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    @Around("@annotation(retry)")
+    public Object retry(ProceedingJoinPoint joinPoint, RetryOnOptimisticLock retry) throws Throwable {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return joinPoint.proceed();
+        }
+        long backoff = retry.backoffMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return joinPoint.proceed();
+            } catch (RuntimeException e) {
+                if (!isOptimisticLockFailure(e)) {
+                    throw e;
+                }
+                conflicts.incrementAndGet();
+                if (attempt >= retry.maxAttempts()) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                retries.incrementAndGet();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Optimistic lock conflict in " + joinPoint.getSignature().toShortString()
+                            + ", retry " + attempt + " after " + backoff + " ms");
+                }
+                Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                backoff = Math.min(backoff * 2, retry.maxBackoffMillis());
+            }
+        }
+    }
+
+    private static boolean isOptimisticLockFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockingFailureException || cause instanceof OptimisticLockException
+                    || cause instanceof StaleStateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    @ManagedAttribute(description = "发生乐观锁冲突的次数")
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    @ManagedAttribute(description = "重试的次数")
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @ManagedAttribute(description = "重试后仍然失败的次数")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @ManagedOperation(description = "清空统计信息")
+    public void resetStatistics() {
+        conflicts.set(0);
+        retries.set(0);
+        failures.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "OptimisticLockRetryAspect [conflicts=" + getConflicts() + ", retries=" + getRetries()
+                + ", failures=" + getFailures() + "]";
+    }
+}
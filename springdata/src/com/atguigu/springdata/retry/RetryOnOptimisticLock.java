@@ -0,0 +1,26 @@
+package com.atguigu.springdata.retry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 乐观锁冲突(@Version 检查失败)时重新执行整个方法, 每次重试前等待一段时间, 等待时间按指数增长, 不超过 maxBackoffMillis
+ * 一般和 @Transactional 一起标注在 Service 的方法上, 每次重试都在新的事务中重新读取数据, 见 OptimisticLockRetryAspect
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface RetryOnOptimisticLock {
+
+    // 最多执行的次数, 包括第一次
+    int maxAttempts() default 5;
+
+    // 第一次重试前的等待时间(毫秒), 之后每次翻倍
+    long backoffMillis() default 10;
+
+    // 最长的等待时间(毫秒)
+    long maxBackoffMillis() default 200;
+}
@@ -2,25 +2,83 @@ package com.atguigu.springdata.test;
 
 import com.atguigu.springdata.Person;
 import com.atguigu.springdata.PersonRepository;
+import com.atguigu.springdata.PersonContact;
 import com.atguigu.springdata.PersonService;
+import com.atguigu.springdata.PersonWriteBehindBuffer;
+import com.atguigu.springdata.PersonSummary;
 import com.atguigu.springdata.commonrepositorymethod.AddressRepository;
+import com.atguigu.springdata.commonrepositorymethod.CompiledQueryCache;
+import com.atguigu.springdata.commonrepositorymethod.EntityCallback;
+import com.atguigu.springdata.commonrepositorymethod.FetchSpecifications;
+import com.atguigu.springdata.commonrepositorymethod.IdGeneratorInitializer;
+import com.atguigu.springdata.commonrepositorymethod.KeysetSlice;
+import com.atguigu.springdata.commonrepositorymethod.NearCacheManager;
+import com.atguigu.springdata.commonrepositorymethod.OffsetSlice;
+import com.atguigu.springdata.commonrepositorymethod.ParameterizedSpecification;
+import com.atguigu.springdata.commonrepositorymethod.RepositoryDefinitionsGenerator;
+import com.atguigu.springdata.commonrepositorymethod.RepositoryIndexAdvisor;
+import com.atguigu.springdata.commonrepositorymethod.RepositoryMetrics;
+import com.atguigu.springdata.datasource.MonitoredDataSource;
+import com.atguigu.springdata.datasource.ReadWriteRoutingDataSource;
+import com.atguigu.springdata.datasource.ShardRoutingDataSource;
+import com.atguigu.springdata.reactive.ReactivePersonRepository;
+import com.atguigu.springdata.retry.OptimisticLockRetryAspect;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.concurrent.ListenableFuture;
 
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.criteria.*;
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
 
 public class SpringDataTest {
 
+    // 测试通过 Statistics 统计执行的 SQL 数量, 生产环境默认关闭(见 db.properties), 系统属性优先于 db.properties
+    static {
+        System.setProperty("hibernate.generate_statistics", "true");
+    }
+
     private ApplicationContext ctx = null;
     private PersonRepository personRepository = null;
     private PersonService personService = null;
@@ -86,6 +144,133 @@ public class SpringDataTest {
         System.out.println("当前页面的记录数: " + page.getNumberOfElements());
     }
 
+    // 键集分页: 不执行 count 查询, 用上一页返回的令牌查下一页, 深度翻页时耗时基本不变
+    @Test
+    public void testKeysetPaging () {
+        Specification<Person> specification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
+                Path path = root.get("id");
+                return criteriaBuilder.gt(path, 5);
+            }
+        };
+
+        int pageSize = 5;
+        String token = null;
+        int pageNo = 0;
+        do {
+            long start = System.nanoTime();
+            KeysetSlice<Person> slice = personRepository.findSlice(specification, token, pageSize);
+            pageNo++;
+            System.out.println("第 " + pageNo + " 页, 耗时: " + (System.nanoTime() - start) / 1000 + " us, "
+                    + "记录数: " + slice.getNumberOfElements() + ", 内容: " + slice.getContent());
+            token = slice.getContinuationToken();
+        } while (token != null);
+    }
+
+    // 不执行 count 的分页, 以及缓存了 count 结果的分页
+    @Test
+    public void testPagingWithoutCount () {
+        Specification<Person> specification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
+                Path path = root.get("id");
+                return criteriaBuilder.gt(path, 5);
+            }
+        };
+        PageRequest pageable = new PageRequest(2, 5);
+
+        OffsetSlice<Person> slice = personRepository.findSlice(specification, pageable);
+        System.out.println("当前页面的 List: " + slice.getContent() + ", 是否有下一页: " + slice.hasNext());
+
+        // 第二次查询的 count 直接从缓存中获取
+        for (int i = 0; i < 2; i++) {
+            long start = System.nanoTime();
+            Page<Person> page = personRepository.findAllWithCachedCount(specification, pageable);
+            System.out.println("总记录数: " + page.getTotalElements() + ", 耗时: " + (System.nanoTime() - start) / 1000 + " us");
+        }
+
+        // 修改之后缓存失效, 会重新执行 count
+        personService.updatePersonEmail("eeee@atguigu.com", 5);
+        Page<Person> page = personRepository.findAllWithCachedCount(specification, pageable);
+        System.out.println("总记录数: " + page.getTotalElements());
+    }
+
+    // 通过统计执行的 SQL 数量来防止 N+1 查询: 分页查询的 SQL 数量不能随记录数增长
+    @Test
+    public void testFetchAddressWithoutNPlusOne () {
+        final Statistics statistics = getStatistics();
+        Specification<Person> specification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
+                Path path = root.get("id");
+                return criteriaBuilder.gt(path, 5);
+            }
+        };
+
+        // fetch join: 一条 count, 一条带 join 的 select
+        statistics.clear();
+        Page<Person> page = personRepository.findAll(FetchSpecifications.fetch(specification, "address"), new PageRequest(0, 20));
+        for (Person person : page.getContent()) {
+            System.out.println(person + " " + (person.getAddress() == null ? null : person.getAddress().getCity()));
+        }
+        System.out.println("执行的 SQL 数量: " + statistics.getPrepareStatementCount());
+        assertTrue(statistics.getPrepareStatementCount() <= 2);
+
+        // 懒加载 + @BatchSize: 在同一个事务中访问 Address 时, 每 50 个 Address 只发一条 select
+        // 依赖 hibernate.batch_fetch_style=PADDED(见 applicationContext.xml), 默认的 LEGACY 会拆成 50, 25, 12, 10 ... 多条
+        new TransactionTemplate(ctx.getBean(PlatformTransactionManager.class)).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                statistics.clear();
+                List<Person> persons = personRepository.getByAddress_IdGreaterThan(1);
+                for (Person person : persons) {
+                    person.getAddress().getCity();
+                }
+                System.out.println("执行的 SQL 数量: " + statistics.getPrepareStatementCount());
+                assertTrue(statistics.getPrepareStatementCount() <= 1 + (persons.size() + 49) / 50);
+            }
+        });
+    }
+
+    private Statistics getStatistics () {
+        EntityManagerFactory entityManagerFactory = ctx.getBean(EntityManagerFactory.class);
+        return ((HibernateEntityManagerFactory) entityManagerFactory).getSessionFactory().getStatistics();
+    }
+
+    // 二级缓存和查询缓存: 对比清空缓存后第一轮和之后几轮访问数据库的次数
+    @Test
+    public void testSecondLevelCache () {
+        Statistics statistics = getStatistics();
+        ctx.getBean(EntityManagerFactory.class).getCache().evictAll();
+
+        int rounds = 100;
+        for (int i = 0; i < rounds; i++) {
+            if (i == 1) {
+                System.out.println("第一轮执行的 SQL 数量: " + statistics.getPrepareStatementCount());
+            }
+            if (i <= 1) {
+                statistics.clear();
+            }
+            personRepository.getByLastName("aa");
+            personRepository.getMaxIdPerson();
+            personRepository.findOne(11);
+        }
+        System.out.println("之后 " + (rounds - 1) + " 轮执行的 SQL 数量: " + statistics.getPrepareStatementCount());
+        System.out.println("二级缓存 命中: " + statistics.getSecondLevelCacheHitCount()
+                + ", 未命中: " + statistics.getSecondLevelCacheMissCount()
+                + ", 放入: " + statistics.getSecondLevelCachePutCount());
+        System.out.println("查询缓存 命中: " + statistics.getQueryCacheHitCount()
+                + ", 未命中: " + statistics.getQueryCacheMissCount()
+                + ", 放入: " + statistics.getQueryCachePutCount());
+
+        // @Modifying 的批量修改会让 Person 的缓存失效, 下一次查询重新访问数据库
+        personService.updatePersonEmail("aa@atguigu.com", 11);
+        statistics.clear();
+        personRepository.getMaxIdPerson();
+        System.out.println("修改之后执行的 SQL 数量: " + statistics.getPrepareStatementCount());
+    }
+
     // 使用继承了JpaRepository接口的接口执行merge操作
     @Test
     public void testJpaRepository () {
@@ -96,7 +281,9 @@ public class SpringDataTest {
         // 不设置id,直接执行insert
         // 设置了id则会去先select对应id的数据后,执行update
         // 这时就相当于merge方法
+        // Person 有 @Version, 还需要设置 version, 否则会被当作新的实体, save 会直接报错
         person.setId(27);
+        person.setVersion(personRepository.findOne(27).getVersion());
 
         Person person2 = personRepository.saveAndFlush(person);
 
@@ -126,6 +313,37 @@ public class SpringDataTest {
         System.out.println("当前页面的记录数: " + page.getNumberOfElements());
     }
 
+    // 以游标方式遍历全表, 每处理一万条打印一次堆内存的使用量, 应基本保持不变
+    // 处理过的 Person 不会一直留在持久化上下文中: 处理 2000 条之后, 第一条已经可以被垃圾回收
+    @Test
+    public void testStreamPersons () {
+        final Runtime runtime = Runtime.getRuntime();
+        final long[] maxUsed = {0};
+        final boolean[] released = {false};
+        long count = personService.exportPersons(new EntityCallback<Person>() {
+            private long processed = 0;
+            private WeakReference<Person> first;
+
+            @Override
+            public void process(Person person) {
+                if (++processed == 1) {
+                    first = new WeakReference<>(person);
+                } else if (processed == 2000) {
+                    System.gc();
+                    released[0] = first.get() == null;
+                }
+                if (processed % 10000 == 0) {
+                    long used = (runtime.totalMemory() - runtime.freeMemory()) / 1024 / 1024;
+                    maxUsed[0] = Math.max(maxUsed[0], used);
+                    System.out.println("已处理: " + processed + ", 已用堆内存: " + used + " MB");
+                }
+            }
+        });
+        System.out.println("总记录数: " + count + ", 最大堆内存: " + maxUsed[0] + " MB, 第一条已回收: " + released[0]);
+        assertTrue(count == personRepository.count());
+        assertTrue(count < 2000 || released[0]);
+    }
+
     //  测试使用继承了CrudRepository接口的接口执行批量查询操作
     @Test
     public void testFindAll () {
@@ -137,6 +355,77 @@ public class SpringDataTest {
         System.out.println(personList.size());
     }
 
+    // 很长的 id 列表会被拆分成长度补齐过的若干条 IN 查询, 结果按传入的 id 顺序排列
+    @Test
+    public void testFindAllInChunks () {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 20000; i > 0; i--) {
+            ids.add(i);
+        }
+        long start = System.currentTimeMillis();
+        List<Person> persons = personService.findPersonsByIds(ids);
+        System.out.println("串行: " + persons.size() + " 条, 耗时: " + (System.currentTimeMillis() - start) + " ms");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            start = System.currentTimeMillis();
+            persons = personRepository.findAll(ids, executor);
+            System.out.println("并行: " + persons.size() + " 条, 耗时: " + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            executor.shutdown();
+        }
+
+        // email 列表为空时只有 birth 的条件
+        Date now = new Date();
+        List<Person> byBirth = personService.getByEmailInOrBirthLessThan(Collections.<String>emptyList(), now);
+        System.out.println("email 为空: " + byBirth.size());
+        assertTrue(byBirth.size() == personRepository.getByBirthLessThan(now).size());
+
+        // email 拆分成多段, 存在的 email 在最后一段, 并且出现了两次, birth 的结果也要合并进来
+        Person last = personRepository.getMaxIdPerson();
+        List<String> emails = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            emails.add("batch" + i + "@atguigu.com");
+        }
+        emails.add(last.getEmail());
+        emails.add(last.getEmail());
+        List<Person> merged = personService.getByEmailInOrBirthLessThan(emails, now);
+        System.out.println("email 拆分成多段: " + merged.size());
+        Set<Integer> mergedIds = new HashSet<>();
+        for (Person person : merged) {
+            assertTrue(mergedIds.add(person.getId()));
+        }
+        assertTrue(mergedIds.contains(last.getId()));
+        for (Person person : byBirth) {
+            assertTrue(mergedIds.contains(person.getId()));
+        }
+    }
+
+    // 生成器的值落后于已有的记录(例如已有数据的表第一次使用 TABLE 生成器)时, 启动时按 MAX(id) 重新初始化, 新的 id 不会冲突
+    @Test
+    public void testIdGeneratorInitializer () {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(ctx.getBean("dataSource", DataSource.class));
+        Long maxId = jdbcTemplate.queryForObject("SELECT MAX(ID) FROM JPA_PERSONS", Long.class);
+        if (maxId == null) {
+            personService.savePersons(createPersons(1, "idgen"));
+            maxId = jdbcTemplate.queryForObject("SELECT MAX(ID) FROM JPA_PERSONS", Long.class);
+        }
+        jdbcTemplate.update("UPDATE JPA_ID_GENERATORS SET GENERATOR_VALUE = 1 WHERE GENERATOR_NAME = 'PERSON_ID'");
+
+        ctx.getBean(IdGeneratorInitializer.class).afterPropertiesSet();
+        long value = jdbcTemplate.queryForObject(
+                "SELECT GENERATOR_VALUE FROM JPA_ID_GENERATORS WHERE GENERATOR_NAME = 'PERSON_ID'", Long.class);
+        System.out.println("MAX(id): " + maxId + ", PERSON_ID: " + value);
+        assertTrue(value >= maxId + 50);
+
+        // 超过一个 allocationSize, 一定会从表中重新分配
+        List<Person> persons = createPersons(60, "idgen");
+        personService.savePersons(persons);
+        for (Person person : persons) {
+            assertTrue(person.getId() > maxId);
+        }
+    }
+
     // 测试使用继承了CrudRepository接口的接口执行批量保存操作
     @Test
     public void testCRUDRepository () {
@@ -156,6 +445,35 @@ public class SpringDataTest {
         personService.savePersons(persons);
     }
 
+    // 对比 save(Iterable) 和按批 flush/clear 的批量插入的吞吐量
+    @Test
+    public void testSaveAllBatched () {
+        int total = 10000;
+
+        long start = System.currentTimeMillis();
+        personService.savePersons(createPersons(total, "save"));
+        long saveMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        personService.savePersonsBatched(createPersons(total, "batch"));
+        long batchMillis = System.currentTimeMillis() - start;
+
+        System.out.println("save(Iterable): " + saveMillis + " ms, " + (total * 1000L / Math.max(saveMillis, 1)) + " 条/秒");
+        System.out.println("saveAllBatched: " + batchMillis + " ms, " + (total * 1000L / Math.max(batchMillis, 1)) + " 条/秒");
+    }
+
+    private List<Person> createPersons (int count, String prefix) {
+        List<Person> persons = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Person person = new Person();
+            person.setBirth(new Date());
+            person.setEmail(prefix + i + "@atguigu.com");
+            person.setLastName(prefix + i);
+            persons.add(person);
+        }
+        return persons;
+    }
+
     // 测试自定义JPQL进行修改操作
     @Test
     public void testModifying () {
@@ -163,6 +481,26 @@ public class SpringDataTest {
         personService.updatePersonEmail("eeee@atguigu.com", 5);
     }
 
+    // 基础 Repository 提供的批量修改: 按查询条件修改, 以及按 id 用 JDBC 批处理修改
+    @Test
+    public void testBulkUpdate () {
+        Specification<Person> specification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
+                return criteriaBuilder.like(root.<String>get("lastName"), "batch%");
+            }
+        };
+        Map<String, Object> values = new HashMap<>();
+        values.put("birth", new Date());
+        System.out.println("按条件修改的记录数: " + personRepository.updateAll(specification, values));
+
+        Map<Integer, String> emails = new HashMap<>();
+        for (int i = 6; i < 20; i++) {
+            emails.put(i, "bulk" + i + "@atguigu.com");
+        }
+        System.out.println("按 id 批量修改的记录数: " + personService.updatePersonEmails(emails));
+    }
+
     // 本地sql查询
     @Test
     public void testNativeQuery(){
@@ -213,6 +551,10 @@ public class SpringDataTest {
 //        List<Person> persons = personRepository.getByAddressIdGreaterThan(1);
         List<Person> persons = personRepository.getByAddress_IdGreaterThan(1);
         System.out.println(persons);
+
+        // 用 fetch join 把 address 一起查出来
+        persons = personRepository.getWithAddressByAddressIdGreaterThan(1);
+        System.out.println(persons);
     }
 
     // 定义查询方法进行查询
@@ -241,4 +583,584 @@ public class SpringDataTest {
         DataSource dataSource = ctx.getBean(DataSource.class);
         System.out.println(dataSource.getConnection());
     }
+
+    // 并发执行查询后查看连接池的使用情况, 用来确定连接池的大小
+    // 启动时加上 -Dspring.profiles.active=hikari 可以对比 HikariCP
+    @Test
+    public void testPoolMetrics() throws Exception {
+        MonitoredDataSource dataSource = ctx.getBean(MonitoredDataSource.class);
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    personRepository.getByLastNameStartingWithAndIdLessThan("X", 10);
+                }
+            }));
+            if (i % 200 == 0) {
+                System.out.println(dataSource);
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        System.out.println(dataSource);
+    }
+
+    // 查看每个 Repository 方法的调用次数、耗时分布、SQL 数量和返回的记录数
+    @Test
+    public void testRepositoryMetrics() {
+        RepositoryMetrics metrics = ctx.getBean(RepositoryMetrics.class);
+        metrics.reset();
+        metrics.setSlowThresholdMillis(0);
+        for (int i = 0; i < 100; i++) {
+            personRepository.getByLastNameStartingWithAndIdLessThan("X", 10);
+        }
+        personRepository.findAll(new PageRequest(0, 5));
+        personRepository.getTotalCount();
+        metrics.setSlowThresholdMillis(200);
+        System.out.println(metrics.getReport());
+    }
+
+    // 读写分离: 写入后的一小段时间内读主库, 之后读从库
+    // 两个 H2 数据库之间没有复制, 所以从库中查不到刚写入的数据
+    @Test
+    public void testReadWriteRouting() throws InterruptedException {
+        ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext(
+                "com/atguigu/springdata/datasource/applicationContext-readwrite.xml");
+        try {
+            JdbcTemplate primary = new JdbcTemplate(ctx.getBean("primaryDataSource", DataSource.class));
+            JdbcTemplate replica = new JdbcTemplate(ctx.getBean("replicaDataSource", DataSource.class));
+            for (Map<String, Object> row : primary.queryForList("SCRIPT NODATA")) {
+                replica.execute((String) row.get("SCRIPT"));
+            }
+
+            PersonRepository personRepository = ctx.getBean(PersonRepository.class);
+            ReadWriteRoutingDataSource routingDataSource = ctx.getBean(ReadWriteRoutingDataSource.class);
+
+            Person person = new Person();
+            person.setLastName("rw");
+            person.setEmail("rw@atguigu.com");
+            person.setBirth(new Date());
+            personRepository.save(person);
+
+            Person fromPrimary = personRepository.getByLastName("rw");
+            System.out.println("读主库: " + fromPrimary);
+            assertTrue(fromPrimary != null);
+
+            Thread.sleep(600);
+            Person fromReplica = personRepository.getByLastName("rw");
+            System.out.println("读从库: " + fromReplica);
+            assertTrue(fromReplica == null);
+
+            System.out.println(routingDataSource);
+        } finally {
+            ctx.close();
+        }
+    }
+
+    // 一个页面需要的三个查询同时执行, 总耗时接近最慢的那个查询
+    @Test
+    public void testAsyncQueries() throws Exception {
+        long start = System.currentTimeMillis();
+        ListenableFuture<Person> person = personService.getByLastNameAsync("AA");
+        ListenableFuture<Long> count = personService.getTotalCountAsync();
+        ListenableFuture<Page<Person>> page = personService.findAllAsync(new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+                return cb.gt(root.<Integer>get("id"), 5);
+            }
+        }, new PageRequest(0, 5));
+
+        System.out.println(person.get());
+        System.out.println(count.get());
+        System.out.println(page.get().getContent());
+        System.out.println("耗时: " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // 投影查询: 只查询需要的列, 不创建实体
+    @Test
+    public void testProjections() {
+        List<PersonSummary> summaries = personRepository.getSummaryByLastNameStartingWithAndIdLessThan("X", 10);
+        System.out.println(summaries);
+
+        Specification<Person> specification = new Specification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+                return cb.lt(root.<Integer>get("id"), 10);
+            }
+        };
+        List<PersonContact> contacts = personRepository.findAll(specification, PersonContact.class);
+        for (PersonContact contact : contacts) {
+            System.out.println(contact.getLastName() + ": " + contact.getEmail());
+        }
+        System.out.println(personRepository.findAll(specification, PersonSummary.class, "id", "lastName", "email"));
+
+        System.out.println(personRepository.readByLastNameStartingWithAndIdLessThan("X", 10));
+        System.out.println(personRepository.findAllReadOnly(specification));
+    }
+
+    // 查询结构相同的 ParameterizedSpecification 只渲染一次 JPQL, 之后只绑定参数
+    @Test
+    public void testCompiledQueryCache() {
+        CompiledQueryCache cache = ctx.getBean(CompiledQueryCache.class);
+        for (int i = 0; i < 10; i++) {
+            Page<Person> page = personRepository.findAll(createIdGreaterThanSpecification(i), new PageRequest(0, 5));
+            System.out.println(page.getTotalElements() + ": " + page.getContent());
+        }
+        System.out.println(cache);
+        assertTrue(cache.getHits() > 0);
+
+        // 直接写在查询中的数字不能缓存, 否则之后的查询都会使用第一次的值
+        long uncacheable = cache.getUncacheable();
+        for (final int minId : new int[] {0, 1000000}) {
+            long count = personRepository.count(new ParameterizedSpecification<Person>() {
+                @Override
+                public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+                    return cb.gt(root.<Integer>get("id"), minId);
+                }
+
+                @Override
+                public String getFingerprint() {
+                    return "Person.idGreaterThanLiteral";
+                }
+            });
+            System.out.println(minId + ": " + count);
+            assertTrue(minId == 0 ? count > 0 : count == 0);
+        }
+        assertTrue(cache.getUncacheable() == uncacheable + 2);
+    }
+
+    private Specification<Person> createIdGreaterThanSpecification(int minId) {
+        return new ParameterizedSpecification<Person>() {
+            @Override
+            public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+                return cb.gt(root.<Integer>get("id"), parameter(cb, Integer.class, "minId"));
+            }
+
+            @Override
+            public String getFingerprint() {
+                return "Person.idGreaterThan";
+            }
+        }.bind("minId", minId);
+    }
+
+    // upsert: 已存在的记录只修改 email, 不存在的插入, 不需要先 SELECT
+    @Test
+    public void testUpsert() {
+        Person existing = personRepository.getMaxIdPerson();
+        Person person = new Person();
+        person.setId(existing.getId());
+        person.setLastName("ignored");
+        person.setEmail("upsert@atguigu.com");
+        person.setBirth(new Date());
+
+        List<Person> persons = createPersons(120, "upsert");
+        persons.add(person);
+        System.out.println(personService.upsertPersons(persons, "email"));
+        System.out.println(personRepository.findOne(existing.getId()));
+    }
+
+    // 并行导出: 与 testStreamPersons 对比耗时
+    @Test
+    public void testExportPersonsParallel() {
+        long start = System.currentTimeMillis();
+        long count = personService.exportPersonsParallel(4, new EntityCallback<Person>() {
+            @Override
+            public void process(Person person) {
+                // 在调用者的线程中逐条处理, 不需要考虑线程安全
+            }
+        });
+        System.out.println("导出 " + count + " 条, 耗时: " + (System.currentTimeMillis() - start) + "ms");
+        assertTrue(count == personRepository.getTotalCount());
+    }
+
+    // 多个线程同时修改同一个 Person, 冲突的事务会自动重试, 最后的版本号等于修改的次数
+    @Test
+    public void testOptimisticLockRetry() throws Exception {
+        final Integer id = personRepository.getMaxIdPerson().getId();
+        int versionBefore = personRepository.findOne(id).getVersion();
+        OptimisticLockRetryAspect retryAspect = ctx.getBean(OptimisticLockRetryAspect.class);
+        retryAspect.resetStatistics();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final String email = "retry" + i + "@atguigu.com";
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    personService.changePersonEmail(id, email);
+                }
+            }));
+        }
+        int succeeded = 0;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+                succeeded++;
+            } catch (Exception e) {
+                System.out.println(e);
+            }
+        }
+        executor.shutdown();
+
+        System.out.println(retryAspect);
+        System.out.println(personRepository.findOne(id));
+        assertTrue(personRepository.findOne(id).getVersion() == versionBefore + succeeded);
+    }
+
+    // getByLastName 的近端缓存: 第二次查询不执行 SQL, 查不到的结果也会缓存, 通过 Repository 修改后失效
+    // 每次返回的是缓存中实体的副本, 修改返回的实体不影响之后的调用
+    @Test
+    public void testNearCache() throws Exception {
+        NearCacheManager nearCacheManager = ctx.getBean(NearCacheManager.class);
+        nearCacheManager.invalidateAll();
+        nearCacheManager.resetStatistics();
+
+        Person person = personRepository.getMaxIdPerson();
+        Person first = personRepository.getByLastName(person.getLastName());
+        String email = first.getEmail();
+        first.setEmail("modified@atguigu.com");
+        Person second = personRepository.getByLastName(person.getLastName());
+        System.out.println(nearCacheManager);
+        assertTrue(nearCacheManager.getHitRatio() > 0);
+        assertTrue(first != second && first.getId().equals(second.getId()));
+        assertTrue(email.equals(second.getEmail()));
+
+        personRepository.getByLastName("no-such-person");
+        personRepository.getByLastName("no-such-person");
+
+        // 修改后缓存失效, 再次查询得到新的 email
+        personService.updatePersonEmail("near" + person.getId() + "@atguigu.com", person.getId());
+        Person updated = personRepository.getByLastName(person.getLastName());
+        System.out.println(updated.getEmail());
+        assertTrue(updated != first);
+
+        // 多个线程同时查询同一个没有缓存的 key, 只有一个线程访问数据库
+        nearCacheManager.invalidateAll();
+        final String lastName = person.getLastName();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Person>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Person>() {
+                @Override
+                public Person call() {
+                    return personRepository.getByLastName(lastName);
+                }
+            }));
+        }
+        for (Future<Person> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        System.out.println(nearCacheManager);
+    }
+
+    // 启动时对查询方法的索引分析: Person 上声明的索引都已经创建, 以 % 开头的 LIKE 会被报告出来
+    @Test
+    public void testRepositoryIndexAdvisor() {
+        RepositoryIndexAdvisor advisor = ctx.getBean(RepositoryIndexAdvisor.class);
+        System.out.println(advisor.getReport());
+        for (String ddl : advisor.getMissingIndexes()) {
+            System.out.println(ddl);
+            assertTrue(!ddl.startsWith("CREATE INDEX IDX_JPA_PERSONS_LAST_NAME_ID "));
+            assertTrue(!ddl.startsWith("CREATE INDEX IDX_JPA_PERSONS_EMAIL "));
+        }
+        assertTrue(advisor.getReport().contains("cannot use an index"));
+    }
+
+    // 对比默认启动和 fast profile 启动的耗时, 以及 fast profile 下第一次调用查询方法的耗时
+    // 同一个 JVM 中类已经加载过了, 只能看出相对的差别, 冷启动的对比见 StartupBenchmark
+    @Test
+    public void testFastStartup() throws IOException {
+        // 生成的 bean 定义需要和当前的代码一致
+        String generated = RepositoryDefinitionsGenerator.generate(RepositoryDefinitionsGenerator.DEFAULT_BASE_PACKAGE);
+        String checkedIn = FileCopyUtils.copyToString(new InputStreamReader(
+                new ClassPathResource("applicationContext-fast.xml").getInputStream(), "UTF-8"));
+        assertTrue(generated.equals(checkedIn));
+
+        long start = System.nanoTime();
+        ClassPathXmlApplicationContext defaultCtx = new ClassPathXmlApplicationContext("applicationContext.xml");
+        System.out.println("default startup: " + (System.nanoTime() - start) / 1000000 + " ms");
+        defaultCtx.close();
+
+        start = System.nanoTime();
+        ClassPathXmlApplicationContext fastCtx = new ClassPathXmlApplicationContext();
+        fastCtx.getEnvironment().setActiveProfiles("fast", "c3p0");
+        fastCtx.setConfigLocation("applicationContext.xml");
+        fastCtx.refresh();
+        System.out.println("fast startup: " + (System.nanoTime() - start) / 1000000 + " ms");
+        try {
+            // fast profile 下 JDBC 批处理仍然开启, 与 applicationContext.xml 中的 hibernate.jdbc.batch_size 相同
+            SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) ((HibernateEntityManagerFactory) fastCtx
+                    .getBean(EntityManagerFactory.class)).getSessionFactory();
+            System.out.println("jdbc batch size: " + sessionFactory.getSettings().getJdbcBatchSize());
+            assertTrue(sessionFactory.getSettings().getJdbcBatchSize() == 50);
+            PersonRepository fastRepository = fastCtx.getBean(PersonRepository.class);
+            start = System.nanoTime();
+            fastRepository.getByLastNameStartingWithAndIdLessThan("A", 10);
+            System.out.println("first query: " + (System.nanoTime() - start) / 1000000 + " ms");
+            start = System.nanoTime();
+            fastRepository.getByLastNameStartingWithAndIdLessThan("A", 10);
+            System.out.println("second query: " + (System.nanoTime() - start) / 1000000 + " ms");
+        } finally {
+            fastCtx.close();
+        }
+    }
+
+    // 响应式 Repository: 使用内存中的 H2 数据库, 订阅者每次只请求 10 条, 处理完再请求下一批
+    @Test
+    public void testReactiveRepository() throws Exception {
+        ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext();
+        ctx.getEnvironment().setActiveProfiles("embedded");
+        ctx.setConfigLocation("applicationContext.xml");
+        ctx.refresh();
+        try {
+            ctx.getBean(PersonService.class).savePersonsBatched(createPersons(95, "rx"));
+            ReactivePersonRepository reactiveRepository = ctx.getBean(ReactivePersonRepository.class);
+
+            final int batch = 10;
+            final AtomicInteger received = new AtomicInteger();
+            final AtomicInteger requests = new AtomicInteger();
+            final CountDownLatch completed = new CountDownLatch(1);
+            reactiveRepository.getByLastNameStartingWithAndIdLessThan("rx", Integer.MAX_VALUE).subscribe(new Subscriber<Person>() {
+                private Subscription subscription;
+
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    this.subscription = subscription;
+                    requests.incrementAndGet();
+                    subscription.request(batch);
+                }
+
+                @Override
+                public void onNext(Person person) {
+                    // 收到的数量不会超过请求的数量
+                    assertTrue(received.incrementAndGet() <= requests.get() * batch);
+                    if (received.get() % batch == 0) {
+                        requests.incrementAndGet();
+                        subscription.request(batch);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    t.printStackTrace();
+                }
+
+                @Override
+                public void onComplete() {
+                    completed.countDown();
+                }
+            });
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            System.out.println("received: " + received.get() + ", requests: " + requests.get());
+            assertTrue(received.get() == 95);
+
+            final CountDownLatch counted = new CountDownLatch(1);
+            reactiveRepository.countByLastNameStartingWith("rx").subscribe(new Subscriber<Long>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(Long count) {
+                    System.out.println("count: " + count);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    t.printStackTrace();
+                }
+
+                @Override
+                public void onComplete() {
+                    counted.countDown();
+                }
+            });
+            assertTrue(counted.await(10, TimeUnit.SECONDS));
+        } finally {
+            ctx.close();
+        }
+    }
+
+    // 延迟写入: 10 个人各修改 10 次 email, 只写入最后一次的值, 共 10 条 UPDATE
+    // 然后模拟崩溃: 不调用 close, 用同一个日志文件创建新的缓冲区, 启动时重放没有写入的修改
+    @Test
+    public void testWriteBehindBuffer() throws Exception {
+        ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext();
+        ctx.getEnvironment().setActiveProfiles("embedded");
+        ctx.setConfigLocation("applicationContext.xml");
+        ctx.refresh();
+        try {
+            PersonRepository repository = ctx.getBean(PersonRepository.class);
+            ctx.getBean(PersonService.class).savePersonsBatched(createPersons(10, "wb"));
+            List<Person> persons = repository.getByLastNameStartingWithAndIdLessThan("wb", Integer.MAX_VALUE);
+
+            PersonWriteBehindBuffer buffer = ctx.getBean(PersonWriteBehindBuffer.class);
+            buffer.resetStatistics();
+            for (int i = 0; i < 10; i++) {
+                for (Person person : persons) {
+                    buffer.updateEmail(person.getId(), "wb" + i + "-" + person.getId() + "@atguigu.com");
+                }
+            }
+            System.out.println("queue depth: " + buffer.getQueueDepth());
+            assertTrue(buffer.flush() == 10);
+            System.out.println(buffer);
+            assertTrue(buffer.getCoalesced() == 90);
+            for (Person person : persons) {
+                assertTrue(repository.findOne(person.getId()).getEmail().equals("wb9-" + person.getId() + "@atguigu.com"));
+            }
+
+            File logFile = File.createTempFile("person-write-behind", ".log");
+            logFile.deleteOnExit();
+            Integer id = persons.get(0).getId();
+            PersonWriteBehindBuffer crashed = new PersonWriteBehindBuffer();
+            crashed.setPersonRepository(repository);
+            crashed.setFlushIntervalMillis(60000);
+            crashed.setLogFile(logFile.getPath());
+            crashed.start();
+            crashed.updateEmail(id, "lost@atguigu.com");
+            crashed.updateEmail(id, "replayed@atguigu.com");
+
+            PersonWriteBehindBuffer recovered = new PersonWriteBehindBuffer();
+            recovered.setPersonRepository(repository);
+            recovered.setLogFile(logFile.getPath());
+            recovered.start();
+            System.out.println("replayed: " + recovered.getReplayed());
+            assertTrue(recovered.getReplayed() == 2);
+            recovered.close();
+            assertTrue(repository.findOne(id).getEmail().equals("replayed@atguigu.com"));
+        } finally {
+            ctx.close();
+        }
+    }
+
+    // 分库: 两个 H2 数据库充当分片, Person 按 lastName 分片
+    // getByLastName 只访问一个分片; count 和分页查询访问所有分片, 结果合并后与单库的结果相同
+    @Test
+    public void testSharding() throws Exception {
+        ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext(
+                "com/atguigu/springdata/datasource/applicationContext-sharding.xml");
+        try {
+            ShardRoutingDataSource shards = ctx.getBean(ShardRoutingDataSource.class);
+            JdbcTemplate shard0 = new JdbcTemplate(shards.getShard(0));
+            JdbcTemplate shard1 = new JdbcTemplate(shards.getShard(1));
+            for (Map<String, Object> row : shard0.queryForList("SCRIPT NODATA")) {
+                shard1.execute((String) row.get("SCRIPT"));
+            }
+            shards.initializeIdRanges("JPA_ID_GENERATORS", "GENERATOR_NAME", "GENERATOR_VALUE", "PERSON_ID");
+
+            final PersonRepository repository = ctx.getBean(PersonRepository.class);
+            List<Person> persons = createPersons(20, "shard");
+            repository.save(persons);
+            long rows0 = shard0.queryForObject("SELECT COUNT(*) FROM JPA_PERSONS", Long.class);
+            long rows1 = shard1.queryForObject("SELECT COUNT(*) FROM JPA_PERSONS", Long.class);
+            System.out.println("shard0: " + rows0 + ", shard1: " + rows1);
+            assertTrue(rows0 > 0 && rows1 > 0 && rows0 + rows1 == 20);
+            assertTrue(repository.getTotalCount() == 20);
+            assertTrue(repository.count() == 20);
+
+            shards.resetStatistics();
+            Person person = repository.getByLastName("shard7");
+            System.out.println(person + " " + shards);
+            assertTrue(person != null);
+            assertTrue(repository.findOne(person.getId()).getLastName().equals("shard7"));
+
+            // 第 2 页, 按 lastName 降序: 每个分片返回前 10 条, 归并后取第 6 到第 10 条
+            List<String> lastNames = new ArrayList<>();
+            for (Person p : persons) {
+                lastNames.add(p.getLastName());
+            }
+            Collections.sort(lastNames, Collections.reverseOrder());
+            Page<Person> page = repository.findAll(new Specification<Person>() {
+                @Override
+                public Predicate toPredicate(Root<Person> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+                    return cb.like(root.<String>get("lastName"), "shard%");
+                }
+            }, new PageRequest(1, 5, new Sort(Sort.Direction.DESC, "lastName")));
+            List<String> pageLastNames = new ArrayList<>();
+            for (Person p : page.getContent()) {
+                pageLastNames.add(p.getLastName());
+            }
+            System.out.println(pageLastNames + ", total: " + page.getTotalElements());
+            assertTrue(pageLastNames.equals(lastNames.subList(5, 10)));
+            assertTrue(page.getTotalElements() == 20);
+
+            // 一个事务只能访问一个分片
+            String other = "shard0";
+            for (String lastName : lastNames) {
+                if (shards.shardFor(lastName) != shards.shardFor("shard7")) {
+                    other = lastName;
+                }
+            }
+            final String otherLastName = other;
+            try {
+                new TransactionTemplate(ctx.getBean(PlatformTransactionManager.class)).execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        repository.getByLastName("shard7");
+                        repository.getByLastName(otherLastName);
+                    }
+                });
+                assertTrue(false);
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage());
+            }
+
+            // 按 id 删除发到所有分片, 没有这条记录的分片不报错; 所有分片都没有这条记录时才抛出异常
+            Integer deletedId = person.getId();
+            repository.delete(deletedId);
+            assertTrue(repository.findOne(deletedId) == null);
+            assertTrue(repository.count() == 19);
+            try {
+                repository.delete(deletedId);
+                assertTrue(false);
+            } catch (EmptyResultDataAccessException e) {
+                System.out.println(e.getMessage());
+            }
+
+            // 线程池中执行的查询也在调用者的分片上执行, 每个分片只返回自己的记录
+            List<Integer> ids = new ArrayList<>();
+            for (Person p : persons) {
+                if (!p.getId().equals(deletedId)) {
+                    ids.add(p.getId());
+                }
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                // 结果按传入的 id 顺序排列, 而不是按分片拼接
+                Collections.reverse(ids);
+                List<Person> found = repository.findAll(ids, executor);
+                System.out.println(found.size());
+                assertTrue(found.size() == ids.size());
+                for (int i = 0; i < ids.size(); i++) {
+                    assertTrue(found.get(i).getId().equals(ids.get(i)));
+                }
+                List<Integer> foundIds = new ArrayList<>();
+                for (Person p : repository.findAll(ids)) {
+                    foundIds.add(p.getId());
+                }
+                assertTrue(foundIds.equals(ids));
+            } finally {
+                executor.shutdown();
+            }
+
+            // 分片键不能原地修改
+            try {
+                repository.updateInBatch("lastName", Collections.singletonMap(ids.get(0), "moved"));
+                assertTrue(false);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+            assertTrue(repository.getByLastName("moved") == null);
+        } finally {
+            ctx.close();
+        }
+    }
 }